@@ -3,11 +3,13 @@ package com.hmdp;
 import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 @MapperScan("com.hmdp.mapper")
 @SpringBootApplication
 @EnableTransactionManagement
+@EnableScheduling
 public class HmDianPingApplication {
 
     public static void main(String[] args) {
@@ -33,6 +33,15 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 查询缓存统计：本地一级缓存的命中率、淘汰数，合并加载次数、失效通知延迟和布隆过滤器拦截数
+     * @return 统计数据
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return Result.ok(shopService.queryCacheStats());
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -40,10 +49,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
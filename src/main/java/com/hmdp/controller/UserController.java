@@ -71,6 +71,10 @@ public class UserController {
 
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
+        // 布隆过滤器判断用户一定不存在，按没有详情处理
+        if (!userService.mightExist(userId)) {
+            return Result.ok();
+        }
         // 查询详情
         UserInfo info = userInfoService.getById(userId);
         if (info == null) {
@@ -8,6 +8,8 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_DAILY_SLOTS;
+
 /**
  * <p>
  *  前端控制器
@@ -27,7 +29,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -38,6 +40,11 @@ public class VoucherController {
      */
     @PostMapping("seckill")
     public Result addSeckillVoucher(@RequestBody Voucher voucher) {
+        // 按天限购时订单的slot为 天数*1000+当天第几单，每天最多999单
+        if (Boolean.TRUE.equals(voucher.getLimitDaily()) && voucher.getUserLimit() != null
+                && voucher.getUserLimit() >= SECKILL_DAILY_SLOTS) {
+            return Result.fail("每天限购数量不能超过" + (SECKILL_DAILY_SLOTS - 1));
+        }
         voucherService.addSeckillVoucher(voucher);
         return Result.ok(voucher.getId());
     }
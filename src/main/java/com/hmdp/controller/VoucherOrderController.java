@@ -2,11 +2,16 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillBasketDTO;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -28,4 +33,56 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
        return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 一次秒杀多张优惠券，在一次脚本调用中完成
+     * @param basket 优惠券id列表和是否整单成功
+     * @return 每张优惠券的结果: 是否成功、订单id、失败原因
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody SeckillBasketDTO basket) {
+        return voucherOrderService.seckillVouchers(basket.getVoucherIds(), Boolean.TRUE.equals(basket.getAllOrNothing()));
+    }
+
+    /**
+     * 领取秒杀排队号码，号码进入放行窗口后才能秒杀
+     * @param voucherId 优惠券id
+     * @return 排队号码、已放行到的号码、前面的人数和预计等待时间
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeSeckillTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.takeSeckillTicket(voucherId);
+    }
+
+    /**
+     * 查询排队位置，客户端按返回的预计等待时间轮询
+     * @param voucherId 优惠券id
+     * @return 同领取号码
+     */
+    @GetMapping("seckill/{id}/position")
+    public Result querySeckillPosition(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.querySeckillPosition(voucherId);
+    }
+
+    /**
+     * 查询秒杀订单的创建结果
+     * @param orderId 订单id
+     * @param timeout 长轮询等待毫秒数，0表示立即返回
+     * @return 订单状态: queued / persisted / failed / unknown
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(
+            @PathVariable("id") Long orderId,
+            @RequestParam(value = "timeout", defaultValue = "0") Long timeout) {
+        return voucherOrderService.queryOrderStatus(orderId, timeout);
+    }
+
+    /**
+     * 查询订单队列状态
+     * @return 各消费通道的队列深度和吞吐量
+     */
+    @GetMapping("stats")
+    public Result queryOrderQueueStats() {
+        return Result.ok(voucherOrderService.queryOrderQueueStats());
+    }
 }
@@ -0,0 +1,25 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    public static final String QUEUED = "queued";
+    public static final String PERSISTED = "persisted";
+    public static final String FAILED = "failed";
+    public static final String UNKNOWN = "unknown";
+
+    private Long orderId;
+    /**
+     * 订单状态: queued(排队中) / persisted(已创建) / failed(创建失败) / unknown(不存在或已过期)
+     */
+    private String status;
+    /**
+     * 失败原因
+     */
+    private String reason;
+}
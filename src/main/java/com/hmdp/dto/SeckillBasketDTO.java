@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SeckillBasketDTO {
+    /**
+     * 要秒杀的优惠券id，重复的只算一次
+     */
+    private List<Long> voucherIds;
+    /**
+     * true:全部成功或全部失败; false:能抢到几张算几张
+     */
+    private Boolean allOrNothing;
+}
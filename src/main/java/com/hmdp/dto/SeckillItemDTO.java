@@ -0,0 +1,21 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillItemDTO {
+    private Long voucherId;
+    private Boolean success;
+    /**
+     * 成功时的订单id
+     */
+    private Long orderId;
+    /**
+     * 失败原因
+     */
+    private String errorMsg;
+}
@@ -0,0 +1,27 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WaitingTicketDTO {
+    /**
+     * 排队号码，0表示该优惠券没有开启排队
+     */
+    private Long ticket;
+    /**
+     * 当前已放行到的号码，号码不大于它的用户可以秒杀
+     */
+    private Long admitted;
+    /**
+     * 前面还有多少人
+     */
+    private Long ahead;
+    /**
+     * 预计还要等待的毫秒数，客户端据此决定下次查询的时间
+     */
+    private Long waitMillis;
+}
@@ -52,6 +52,16 @@ public class SeckillVoucher implements Serializable {
      */
     private LocalDateTime endTime;
 
+    /**
+     * 每个用户限购数量
+     */
+    private Integer userLimit;
+
+    /**
+     * 是否按天限购，true时每个用户每天限购userLimit张
+     */
+    private Boolean limitDaily;
+
     /**
      * 更新时间
      */
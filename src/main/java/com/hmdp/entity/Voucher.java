@@ -90,6 +90,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 每个用户限购数量
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
+    /**
+     * 是否按天限购
+     */
+    @TableField(exist = false)
+    private Boolean limitDaily;
+
     /**
      * 创建时间
      */
@@ -35,6 +35,11 @@ public class VoucherOrder implements Serializable {
      */
     private Long voucherId;
 
+    /**
+     * 同一用户同一优惠券的第几单，按天限购时为 天数*1000+当天第几单
+     */
+    private Integer slot;
+
     /**
      * 支付方式 1：余额支付；2：支付宝；3：微信
      */
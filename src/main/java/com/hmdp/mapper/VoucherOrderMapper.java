@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 插入订单，违反唯一索引(voucher_id, user_id, slot)或主键重复时忽略
+     * @param voucherOrder 订单
+     * @return 插入行数，0表示订单已存在
+     */
+    int insertIgnore(VoucherOrder voucherOrder);
+
+    /**
+     * 多行插入订单，已存在的订单忽略
+     * @param orders 订单列表
+     * @return 实际插入行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -3,6 +3,11 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>
@@ -18,5 +23,75 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOder(VoucherOrder voucherOrder);
+    /**
+     * 一次秒杀多张优惠券
+     * @param voucherIds 优惠券id
+     * @param allOrNothing true:全部成功或全部失败; false:能抢到几张算几张
+     * @return 每张优惠券的结果
+     */
+    Result seckillVouchers(List<Long> voucherIds, boolean allOrNothing);
+
+    /**
+     * 创建订单
+     * @param voucherOrder 订单
+     * @return 成功时返回订单id，失败时返回原因
+     */
+    Result createVoucherOder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单：一次多行插入，按优惠券合并扣减库存
+     * @param voucherOrders 订单列表
+     * @return 因重复下单被拒绝的订单，其余订单均已创建
+     */
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消未支付的订单，归还数据库和redis中的库存，用户可以重新抢购
+     * @param orderId 订单id
+     * @return 是否取消，订单不存在或不是未支付状态时返回false
+     */
+    boolean cancelVoucherOrder(Long orderId);
+
+    /**
+     * 在数据库中取消未支付的订单并归还库存
+     * @param orderId 订单id
+     * @return 被取消的订单，没有取消时返回null
+     */
+    VoucherOrder cancelUnpaidOrder(Long orderId);
+
+    /**
+     * 领取秒杀排队号码，同一用户重复领取返回原号码
+     * @param voucherId 优惠券id
+     * @return 排队号码和当前位置，未开启排队时号码为0
+     */
+    Result takeSeckillTicket(Long voucherId);
+
+    /**
+     * 查询当前用户的排队位置
+     * @param voucherId 优惠券id
+     * @return 排队号码和当前位置
+     */
+    Result querySeckillPosition(Long voucherId);
+
+    /**
+     * 查询秒杀订单的异步创建结果
+     * @param orderId 订单id
+     * @param timeoutMillis 大于0时长轮询，订单仍在排队则最多等待该时长
+     * @return 订单状态
+     */
+    DeferredResult<Result> queryOrderStatus(Long orderId, long timeoutMillis);
+
+    /**
+     * 订单队列中尚未落库的订单的下单用户：stream中未确认和未投递的消息；
+     * memory队列下为当前节点各通道中的订单和尚未重放完的日志，其他节点的内存通道无法查询
+     * @param voucherId 优惠券id
+     * @return 用户id
+     */
+    Set<Long> queryQueuedBuyers(Long voucherId);
+
+    /**
+     * 查询订单队列状态：各消费通道的队列深度和吞吐量
+     * @return 队列状态
+     */
+    Map<String, Object> queryOrderQueueStats();
 }
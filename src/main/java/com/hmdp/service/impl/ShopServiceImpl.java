@@ -10,6 +10,7 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 
+import com.hmdp.utils.BloomFilterGuard;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
@@ -20,6 +21,8 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -40,8 +43,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
     @Override
     public Result queryById(Long id) {
+        // 布隆过滤器判断一定不存在的，不访问redis和数据库
+        if (!bloomFilterGuard.mightContain(BloomFilterGuard.Type.SHOP, id)) {
+            return Result.fail("店铺不存在");
+        }
         // 缓存穿透
         //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
@@ -223,8 +233,24 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1. 更新数据库
         updateById(shop);
-        // 2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2. 删除缓存，同时通知所有节点删除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 写入布隆过滤器
+        bloomFilterGuard.add(BloomFilterGuard.Type.SHOP, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public Map<String, Object> queryCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(cacheClient.stats());
+        stats.put("bloom", bloomFilterGuard.stats());
+        return stats;
+    }
 }
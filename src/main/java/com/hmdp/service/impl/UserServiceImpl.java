@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -18,7 +20,10 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -38,6 +43,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1. 校验手机号
@@ -94,6 +105,33 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    /**
+     * 批量查询用户的公开信息，一次MGET查询缓存，未命中的一次查询数据库
+     * @return 用户id -> 用户信息，不存在的用户不在结果中
+     */
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        // 布隆过滤器判断一定不存在的用户不再查询
+        List<Long> existing = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (bloomFilterGuard.mightContain(BloomFilterGuard.Type.USER, id)) {
+                existing.add(id);
+            }
+        }
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, existing, UserDTO.class, misses -> {
+            Map<Long, UserDTO> users = new HashMap<>(misses.size() * 2);
+            for (User user : listByIds(misses)) {
+                users.put(user.getId(), BeanUtil.copyProperties(user, UserDTO.class));
+            }
+            return users;
+        }, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public boolean mightExist(Long id) {
+        return bloomFilterGuard.mightContain(BloomFilterGuard.Type.USER, id);
+    }
+
     /**
      * 创建用户
      *
@@ -106,6 +144,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName("user_" + RandomUtil.randomString(5));
         // 保存用户
         save(user);
+        bloomFilterGuard.add(BloomFilterGuard.Type.USER, user.getId());
         return user;
     }
 }
@@ -1,31 +1,71 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillItemDTO;
+import com.hmdp.dto.WaitingTicketDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderRingBuffer;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.OrderTimeoutScheduler;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.SegmentedLruCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.NonTransientDataAccessException;
+import org.springframework.dao.NonTransientDataAccessResourceException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.StreamOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * 服务实现类
@@ -45,175 +85,1340 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    @Resource
+    private OrderStatusStore orderStatusStore;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Resource
+    private OrderTimeoutScheduler orderTimeoutScheduler;
 
     /**
-     * 用于存放秒杀订单的阻塞队列
-     * 阻塞队列: 当队列中没有元素时候会阻塞。
+     * 当前类的代理对象，保证消费线程中调用的事务方法生效
      */
-    private BlockingQueue<VoucherOrder> voucherOrderBlockingQueue = new ArrayBlockingQueue<>(1024 * 1024);
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    /**
+     * 订单消费通道数，每个通道一个环形缓冲区和一个消费线程
+     */
+    @Value("${hmdp.seckill.lanes:4}")
+    private int laneCount;
 
+    /**
+     * 所有通道环形缓冲区的总容量
+     */
+    @Value("${hmdp.seckill.queue-capacity:1048576}")
+    private int queueCapacity;
+
+    /**
+     * 消费线程等待新订单的方式: busy_spin / yielding / sleeping / blocking
+     */
+    @Value("${hmdp.seckill.wait-strategy:sleeping}")
+    private String waitStrategy;
+
+    /**
+     * 是否为订单通道写预写日志，进程崩溃后重启时重放未落库的订单
+     */
+    @Value("${hmdp.seckill.journal.enabled:false}")
+    private boolean journalEnabled;
+
+    @Value("${hmdp.seckill.journal.dir:journal}")
+    private String journalDir;
+
+    /**
+     * 没有请求等待落盘时，日志定期force的间隔(毫秒)
+     */
+    @Value("${hmdp.seckill.journal.flush-interval-millis:10}")
+    private long journalFlushIntervalMillis;
+
+    /**
+     * 请求线程等待日志落盘的最长时间(毫秒)
+     */
+    @Value("${hmdp.seckill.journal.sync-timeout-millis:1000}")
+    private long journalSyncTimeoutMillis;
+
+    /**
+     * 订单消费通道，按用户id哈希路由，同一用户的订单总是由同一线程串行处理
+     */
+    private VoucherOrderLane[] lanes;
+    /**
+     * 上次运行留下的日志，重放成功后删除
+     */
+    private volatile List<Path> oldJournals = Collections.emptyList();
+
+    /**
+     * 转入死信的订单数
+     */
+    private final LongAdder deadLetters = new LongAdder();
+    private ExecutorService seckillOrderExecutor;
+
+    /**
+     * 每批最多处理的订单数
+     */
+    @Value("${hmdp.seckill.batch-size:200}")
+    private int batchSize;
+
+    /**
+     * 凑批最长等待时间(毫秒)
+     */
+    @Value("${hmdp.seckill.batch-wait-millis:50}")
+    private long batchWaitMillis;
+
+    /**
+     * 订单队列类型：memory(JVM内环形缓冲区) / stream(Redis Stream消费者组)
+     */
+    @Value("${hmdp.seckill.queue:memory}")
+    private String queueType;
+
+    /**
+     * 消费者组内的消费者名称
+     */
+    @Value("${hmdp.seckill.stream-consumer:}")
+    private String streamConsumer;
+
+    /**
+     * 启动时认领其他消费者空闲超过该时长(秒)的pending消息
+     */
+    @Value("${hmdp.seckill.stream-claim-idle-seconds:300}")
+    private long streamClaimIdleSeconds;
+
+    /**
+     * 订单状态 1：未支付；4：已取消
+     */
+    private static final int ORDER_STATUS_UNPAID = 1;
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    /**
+     * 已取消的订单被重新抢购时，slot移到该值之后，让出原来的slot给新订单
+     */
+    private static final int CANCELLED_SLOT_BASE = 1_000_000_000;
+
+    /**
+     * 订单状态长轮询的最长等待时间
+     */
+    private static final long MAX_STATUS_WAIT_MILLIS = 30_000L;
+
+    /**
+     * 一次最多秒杀的优惠券数
+     */
+    private static final int MAX_BASKET_SIZE = 20;
+
+    /**
+     * 内存通道中订单创建失败时的重试间隔，每次翻倍
+     */
+    private static final long MIN_RETRY_BACKOFF_MILLIS = 50L;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 2_000L;
+
+    /**
+     * 内存通道中订单最多创建的次数，数据库不可用引起的失败不受限制
+     */
+    private static final int MAX_PERSIST_ATTEMPTS = 10;
+
+    /**
+     * 本地缓存的秒杀券元数据的最大个数和存活时间
+     */
+    private static final long SECKILL_META_CACHE_SIZE = 10_000L;
+    private static final long SECKILL_META_TTL_MILLIS = 600_000L;
 
     // lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    // 返回 {结果码, 用户的第几单}
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+
+    // 分桶库存lua脚本
+    private static final DefaultRedisScript<List> SECKILL_STRIPE_SCRIPT;
+
+    // 一次秒杀多张优惠券的lua脚本，返回 {结果码1, 第几单1, 结果码2, 第几单2, ...}
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_STRIPE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_STRIPE_SCRIPT.setResultType(List.class);
+        SECKILL_STRIPE_SCRIPT.setLocation(new ClassPathResource("seckill_stripe.lua"));
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+    }
+
+    /**
+     * 一人一单的已下单用户记录方式: set / bitmap
+     */
+    @Value("${hmdp.seckill.buyer-tracking:set}")
+    private String buyerTracking;
+
+    /**
+     * 秒杀结束后已下单用户记录保留的小时数
+     */
+    @Value("${hmdp.seckill.buyer-retain-hours:24}")
+    private long buyerRetainHours;
+
+    /**
+     * 秒杀请求用到的优惠券元数据，每个节点缓存最近用到的券，过期后重新加载；不存在的券不缓存
+     */
+    private final SegmentedLruCache<SeckillMeta> seckillMetas =
+            new SegmentedLruCache<>(SECKILL_META_CACHE_SIZE, SECKILL_META_TTL_MILLIS, 16);
+
+    private static class SeckillMeta {
+        /**
+         * 库存分桶数，1表示未分桶
+         */
+        private int stripes = 1;
+        /**
+         * 已下单用户记录的过期时间点(秒)，0表示不过期
+         */
+        private long buyerExpireAt;
+        /**
+         * 每个用户可购买的数量
+         */
+        private int userLimit = 1;
+        /**
+         * 是否按天限购
+         */
+        private boolean limitDaily;
+
+        /**
+         * 一人多单或按天限购时，用hash记录每个用户的购买数量，否则沿用一人一单的set/bitmap
+         */
+        private boolean quota() {
+            return userLimit != 1 || limitDaily;
+        }
+
+        /**
+         * 按天限购时当天的天数(自1970-01-01)，否则为null
+         */
+        private Long day() {
+            return limitDaily ? LocalDate.now().toEpochDay() : null;
+        }
+
+        /**
+         * 购买数量记录的过期时间点(秒)，按天限购时保留到第二天结束
+         */
+        private long quotaExpireAt(Long day) {
+            return day == null ? buyerExpireAt
+                    : LocalDate.ofEpochDay(day + 2).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+        }
+    }
+
+    private SeckillMeta seckillMeta(Long voucherId) {
+        String key = voucherId.toString();
+        SeckillMeta meta = seckillMetas.get(key);
+        if (meta != null) {
+            return meta;
+        }
+        // 并发未命中时可能重复加载，结果相同
+        meta = new SeckillMeta();
+        String stripes = stringRedisTemplate.opsForValue().get(SECKILL_STRIPES_KEY + voucherId);
+        if (stripes != null) {
+            meta.stripes = Integer.parseInt(stripes);
+        }
+        SeckillVoucher seckillVoucher = iSeckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            // 不存在(或尚未创建)的券按默认值处理，不缓存，避免随机id占满缓存、券创建后仍沿用默认值
+            return meta;
+        }
+        if (seckillVoucher.getEndTime() != null) {
+            meta.buyerExpireAt = seckillVoucher.getEndTime().plusHours(buyerRetainHours)
+                    .atZone(ZoneId.systemDefault()).toEpochSecond();
+        }
+        meta.userLimit = seckillVoucher.getUserLimit() == null ? 1 : seckillVoucher.getUserLimit();
+        meta.limitDaily = Boolean.TRUE.equals(seckillVoucher.getLimitDaily());
+        seckillMetas.put(key, meta, 1);
+        return meta;
+    }
+
+    private boolean isBitmapBuyer() {
+        return "bitmap".equalsIgnoreCase(buyerTracking);
     }
 
     //PostConstruct : 当前类初始化完成后，会执行该方法
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        if (isStreamQueue()) {
+            initStreamGroup();
+            seckillOrderExecutor = Executors.newSingleThreadExecutor();
+            seckillOrderExecutor.submit(new VoucherOrderStreamHandler());
+            return;
+        }
+        // 上次运行留下的日志，新日志创建后再重放
+        oldJournals = journalEnabled ? listJournals() : Collections.emptyList();
+        lanes = new VoucherOrderLane[laneCount];
+        seckillOrderExecutor = Executors.newFixedThreadPool(oldJournals.isEmpty() ? laneCount : laneCount + 1);
+        OrderRingBuffer.WaitStrategy strategy = OrderRingBuffer.WaitStrategy.valueOf(waitStrategy.toUpperCase());
+        long generation = System.currentTimeMillis();
+        for (int i = 0; i < laneCount; i++) {
+            int capacity = Math.max(1, queueCapacity / laneCount);
+            OrderJournal journal = null;
+            if (journalEnabled) {
+                // 环形缓冲区容量向上取整不超过2倍，再留出一批正在落库的订单
+                try {
+                    journal = new OrderJournal(Paths.get(journalDir, "lane-" + i + "-" + generation + ".journal"),
+                            2L * capacity + batchSize, journalFlushIntervalMillis);
+                } catch (IOException e) {
+                    throw new IllegalStateException("创建订单日志失败", e);
+                }
+            }
+            lanes[i] = new VoucherOrderLane(i, capacity, strategy, journal);
+            seckillOrderExecutor.submit(lanes[i]);
+        }
+        if (!oldJournals.isEmpty()) {
+            // 消费线程要等当前bean初始化完成才能创建订单，重放放到单独的线程，避免缓冲区满时互相等待
+            seckillOrderExecutor.submit(() -> replayJournals(oldJournals));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+        if (lanes != null) {
+            for (VoucherOrderLane lane : lanes) {
+                if (lane.journal != null) {
+                    try {
+                        lane.journal.close();
+                    } catch (IOException e) {
+                        log.warn("关闭订单日志失败", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Path> listJournals() {
+        Path dir = Paths.get(journalDir);
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".journal")).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new IllegalStateException("读取订单日志目录失败", e);
+        }
+    }
+
+    /**
+     * 把上次运行未落库的订单重新投递到通道(同时写入新日志)，全部投递后删除旧日志
+     */
+    private void replayJournals(List<Path> journals) {
+        int count = 0;
+        for (Path file : journals) {
+            try {
+                for (VoucherOrder voucherOrder : OrderJournal.replay(file)) {
+                    VoucherOrderLane lane = laneOf(voucherOrder.getUserId());
+                    while (!lane.offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId(),
+                            voucherOrder.getSlot())) {
+                        Thread.sleep(10);
+                    }
+                    count++;
+                }
+                Files.delete(file);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("重放订单日志失败: {}", file, e);
+            }
+        }
+        log.info("重放订单日志 {} 个，订单 {} 条", journals.size(), count);
+    }
+
+    private boolean isStreamQueue() {
+        return "stream".equalsIgnoreCase(queueType);
+    }
+
+    /**
+     * 创建消费者组(stream不存在时一并创建)，确定当前节点的消费者名称
+     */
+    private void initStreamGroup() {
+        if (StrUtil.isBlank(streamConsumer)) {
+            try {
+                streamConsumer = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                streamConsumer = "c1";
+            }
+        }
+        try {
+            stringRedisTemplate.execute(connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                    SECKILL_ORDER_GROUP, ReadOffset.from("0"), true), true);
+        } catch (Exception e) {
+            // BUSYGROUP: 消费者组已存在
+            log.debug("消费者组已存在: {}", e.getMessage());
+        }
     }
-    private class VoucherOrderHandler implements Runnable{
+    private class VoucherOrderLane implements Runnable {
+        private final int index;
+        /**
+         * 用于存放秒杀订单的环形缓冲区，请求线程写入，本通道的消费线程读取
+         */
+        private final OrderRingBuffer ring;
+        /**
+         * 预写日志，未开启时为null
+         */
+        private final OrderJournal journal;
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        /**
+         * 已从缓冲区取出、正在落库的一批订单
+         */
+        private volatile List<VoucherOrder> persisting = Collections.emptyList();
+        private final LongAdder journalSyncTimeouts = new LongAdder();
+        // 吞吐量统计快照
+        private long lastProcessed;
+        private long lastNanos = System.nanoTime();
+        private double ordersPerSecond;
+
+        VoucherOrderLane(int index, int capacity, OrderRingBuffer.WaitStrategy waitStrategy, OrderJournal journal) {
+            this.index = index;
+            this.journal = journal;
+            this.ring = new OrderRingBuffer(capacity, waitStrategy, journal);
+        }
+
+        /**
+         * 投递订单，开启日志时等待日志落盘后返回。
+         * 等待落盘超时仍返回true：订单已进入环形缓冲区，会被正常消费，不能再回滚redis中的库存和下单记录，
+         * 只是在这次落盘完成之前进程崩溃时，该订单不会被重放。超时次数见stats中的journalSyncTimeouts。
+         * @return false:缓冲区已满
+         */
+        boolean offer(long id, long userId, long voucherId, int slot) {
+            if (ring.tryPublish(id, userId, voucherId, slot) < 0) {
+                return false;
+            }
+            syncJournal(id);
+            return true;
+        }
+
+        /**
+         * 一次投递同一用户的多个订单，只等待一次日志落盘
+         * @return false:缓冲区剩余空间不足，一个都没有投递
+         */
+        boolean offerAll(long[] ids, long userId, long[] voucherIds, int[] slots, int n) {
+            if (ring.tryPublishBatch(ids, userId, voucherIds, slots, n) < 0) {
+                return false;
+            }
+            syncJournal(ids[0]);
+            return true;
+        }
+
+        private void syncJournal(long id) {
+            if (journal != null) {
+                try {
+                    if (!journal.sync(journalSyncTimeoutMillis)) {
+                        journalSyncTimeouts.increment();
+                        log.warn("等待订单日志落盘超时, orderId={}", id);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
 
         @Override
         public void run() {
-            while (true){
+            // 订单对象在消费线程内复用，每批处理完再覆盖
+            VoucherOrder[] orders = new VoucherOrder[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                orders[i] = new VoucherOrder();
+            }
+            while (!Thread.currentThread().isInterrupted()){
                 try {
-                    // 1.获取阻塞队列中的订单信息
-                    VoucherOrder voucherOrder = voucherOrderBlockingQueue.take();
-                    // 2. 创建订单
-                    handleVoucherOrder(voucherOrder);
+                    // 1.获取环形缓冲区中的订单信息，凑满一批或等待超时
+                    ring.await(-1);
+                    int n = ring.drainTo(orders, 0, batchSize);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+                    while (n < batchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || !ring.await(remaining)) {
+                            break;
+                        }
+                        n += ring.drainTo(orders, n, batchSize - n);
+                    }
+                    // 2. 批量创建订单，一人一单由唯一索引保证
+                    persisting = Arrays.asList(orders).subList(0, n);
+                    persist(persisting);
+                    persisting = Collections.emptyList();
+                    // 3. 订单都已落库或确定被拒绝，推进日志的checkpoint
+                    if (journal != null) {
+                        journal.checkpoint(ring.consumedSequence());
+                    }
+                    processed.add(n);
+                    batches.increment();
                 } catch (InterruptedException e) {
                     log.error("处理订单异常", e);
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * 创建订单直到全部落库、确定被拒绝(如重复下单)或转入死信。抛出异常的订单(如数据库不可用)间隔一段时间后重试，
+         * 期间不消费新的订单也不推进checkpoint，缓冲区满后新的请求被拒绝，进程退出时这些订单仍可从日志重放；
+         * 数据库不可用以外的原因重试{@link #MAX_PERSIST_ATTEMPTS}次仍失败的订单转入死信
+         */
+        private void persist(List<VoucherOrder> voucherOrders) throws InterruptedException {
+            Map<VoucherOrder, Exception> failed = handleVoucherOrderBatch(voucherOrders);
+            long backoffMillis = MIN_RETRY_BACKOFF_MILLIS;
+            int attempts = 1;
+            while (!failed.isEmpty()) {
+                if (attempts >= MAX_PERSIST_ATTEMPTS) {
+                    // 数据库不可用时一直重试；其他原因多次仍失败的订单转入死信，不再阻塞通道
+                    failed.entrySet().removeIf(entry -> {
+                        if (isUnavailable(entry.getValue())) {
+                            return false;
+                        }
+                        deadLetter(entry.getKey(), entry.getValue());
+                        return true;
+                    });
+                    if (failed.isEmpty()) {
+                        break;
+                    }
+                }
+                log.warn("订单创建失败，{}ms后重试, lane={}, size={}", backoffMillis, index, failed.size());
+                retries.increment();
+                Thread.sleep(backoffMillis);
+                backoffMillis = Math.min(backoffMillis * 2, MAX_RETRY_BACKOFF_MILLIS);
+                // 失败的订单事务已回滚，重试时逐条创建
+                failed = handleVoucherOrderBatch(new ArrayList<>(failed.keySet()));
+                attempts++;
+            }
+        }
+
+        /**
+         * 缓冲区中和正在落库的订单里该优惠券的下单用户，订单对象会被消费线程复用，结果是近似的快照
+         */
+        void collectQueuedBuyers(Long voucherId, Set<Long> userIds) {
+            for (VoucherOrder voucherOrder : persisting) {
+                if (voucherId.equals(voucherOrder.getVoucherId())) {
+                    userIds.add(voucherOrder.getUserId());
                 }
             }
+            ring.collectUsers(voucherId, userIds);
+        }
+
+        synchronized Map<String, Object> stats() {
+            long now = System.nanoTime();
+            long total = processed.sum();
+            if (now - lastNanos >= TimeUnit.SECONDS.toNanos(1)) {
+                ordersPerSecond = (total - lastProcessed) * 1e9 / (now - lastNanos);
+                lastProcessed = total;
+                lastNanos = now;
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("lane", index);
+            int depth = ring.size();
+            stats.put("queueDepth", depth);
+            stats.put("remainingCapacity", ring.capacity() - depth);
+            stats.put("rejected", ring.rejected());
+            stats.put("processed", total);
+            stats.put("batches", batches.sum());
+            stats.put("retries", retries.sum());
+            stats.put("journalSyncTimeouts", journalSyncTimeouts.sum());
+            stats.put("ordersPerSecond", Math.round(ordersPerSecond));
+            return stats;
         }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取用户
-        Long userId = voucherOrder.getUserId();
-        // 创建锁对象
+    /**
+     * 按用户id哈希选择消费通道
+     */
+    private VoucherOrderLane laneOf(Long userId) {
+        return lanes[Math.floorMod(Long.hashCode(userId), lanes.length)];
+    }
+
+    private class VoucherOrderStreamHandler implements Runnable {
 
-        // 使用redisson创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            // 获取锁失败,返回失败信息或者重试
-            log.error("不允许重复下单");
-            return ;
+        @Override
+        public void run() {
+            // 启动时先回收pending-list：认领宕机节点的消息，再处理自己已读未确认的消息
+            claimIdlePendingMessages();
+            handlePendingList();
+            while (true) {
+                try {
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, streamConsumer),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.lastConsumed())
+                    );
+                    // 2.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    // 3.创建订单并ACK，有失败的消息留在pending-list中重试
+                    if (!handleStreamRecords(list)) {
+                        handlePendingList();
+                    }
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
         }
+    }
 
+    /**
+     * 处理pending-list中已投递但未确认的消息，每条消息每轮只处理一次
+     */
+    private void handlePendingList() {
+        String offset = "0";
+        while (true) {
+            try {
+                // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders 0
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, streamConsumer),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.from(offset))
+                );
+                // 2.没有pending消息，结束
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                // 3.创建订单并ACK
+                handleStreamRecords(list);
+                offset = list.get(list.size() - 1).getId().getValue();
+            } catch (Exception e) {
+                log.error("处理pending-list订单异常", e);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 把其他消费者空闲过久的pending消息认领到当前消费者，用于接管宕机节点的订单
+     */
+    private void claimIdlePendingMessages() {
+        try {
+            Duration minIdle = Duration.ofSeconds(streamClaimIdleSeconds);
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, Range.unbounded(), 1000L);
+            List<RecordId> ids = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (!streamConsumer.equals(message.getConsumerName())
+                        && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                    ids.add(message.getId());
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            stringRedisTemplate.execute(connection -> connection.streamCommands().xClaimJustId(
+                    SECKILL_ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, streamConsumer,
+                    RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)), true);
+            log.info("认领pending订单消息 {} 条", ids.size());
+        } catch (Exception e) {
+            log.error("认领pending订单消息异常", e);
+        }
+    }
+
+    /**
+     * 创建一批消息对应的订单，并确认处理成功的消息
+     * @return 是否全部处理成功
+     */
+    private boolean handleStreamRecords(List<MapRecord<String, Object, Object>> records) {
+        Map<VoucherOrder, RecordId> recordIds = new IdentityHashMap<>(records.size());
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            if (voucherOrder.getSlot() == null) {
+                // 升级前投递的消息没有slot
+                voucherOrder.setSlot(1);
+            }
+            voucherOrders.add(voucherOrder);
+            recordIds.put(voucherOrder, record.getId());
+        }
+        Map<VoucherOrder, Exception> failed = handleVoucherOrderBatch(voucherOrders);
+        failed.keySet().forEach(recordIds::remove);
+        if (!recordIds.isEmpty()) {
+            // ACK确认 SACK stream.orders g1 id ...
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP,
+                    recordIds.values().toArray(new RecordId[0]));
+        }
+        return failed.isEmpty();
+    }
+
+    /**
+     * 批量创建订单，失败时逐条处理，并记录每个订单的创建结果。
+     * 数据本身有问题(如违反约束)的订单重试也不会成功，直接转入死信
+     * @return 逐条处理时抛出异常的订单及异常，由调用方重试：stream中未确认的消息会重新投递，内存通道原地重试
+     */
+    private Map<VoucherOrder, Exception> handleVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
         try {
-            proxy.createVoucherOder(voucherOrder);
-        } finally {
-            lock.unlock();
+            List<VoucherOrder> rejected = proxy.createVoucherOrderBatch(voucherOrders);
+            Set<Long> rejectedIds = rejected.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            orderStatusStore.markFailed(rejectedIds, "不能重复下单");
+            List<Long> persisted = voucherOrders.stream().map(VoucherOrder::getId)
+                    .filter(id -> !rejectedIds.contains(id)).collect(Collectors.toList());
+            orderStatusStore.markPersisted(persisted);
+            orderTimeoutScheduler.schedule(persisted);
+            return Collections.emptyMap();
+        } catch (Exception e) {
+            // 整批失败(如批内有已存在的订单、某个优惠券库存不够整批扣减)，事务已回滚，退化为逐条处理
+            log.warn("批量创建订单失败，逐条重试, size={}", voucherOrders.size(), e);
+            Map<VoucherOrder, Exception> failed = new IdentityHashMap<>();
+            List<Long> persisted = new ArrayList<>();
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                try {
+                    Result result = proxy.createVoucherOder(voucherOrder);
+                    if (result.getSuccess()) {
+                        persisted.add(voucherOrder.getId());
+                    } else {
+                        orderStatusStore.markFailed(Collections.singletonList(voucherOrder.getId()), result.getErrorMsg());
+                    }
+                } catch (Exception ex) {
+                    if (isPermanent(ex)) {
+                        deadLetter(voucherOrder, ex);
+                    } else {
+                        log.error("处理订单异常, orderId={}", voucherOrder.getId(), ex);
+                        failed.put(voucherOrder, ex);
+                    }
+                }
+            }
+            orderStatusStore.markPersisted(persisted);
+            orderTimeoutScheduler.schedule(persisted);
+            return failed;
         }
     }
 
+    /**
+     * 数据本身有问题(如违反约束、数据过长)，重试不会成功
+     */
+    private static boolean isPermanent(Exception e) {
+        return e instanceof NonTransientDataAccessException && !(e instanceof NonTransientDataAccessResourceException);
+    }
 
+    /**
+     * 数据库不可用或暂时性错误，恢复后重试可以成功
+     */
+    private static boolean isUnavailable(Exception e) {
+        return e instanceof NonTransientDataAccessResourceException || e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException || e instanceof CannotCreateTransactionException;
+    }
 
+    /**
+     * 无法创建的订单：记录到死信列表供人工处理，标记下单失败，并归还redis中的库存和下单记录。
+     * 订单事务已回滚，数据库中没有这笔订单
+     */
+    private void deadLetter(VoucherOrder voucherOrder, Exception e) {
+        deadLetters.increment();
+        log.error("订单创建失败，转入死信, orderId={} userId={} voucherId={} slot={}", voucherOrder.getId(),
+                voucherOrder.getUserId(), voucherOrder.getVoucherId(), voucherOrder.getSlot(), e);
+        try {
+            Map<String, Object> record = BeanUtil.beanToMap(voucherOrder, false, true);
+            record.put("error", String.valueOf(e.getMessage()));
+            stringRedisTemplate.opsForList().rightPush(SECKILL_ORDER_DEAD_KEY, JSONUtil.toJsonStr(record));
+            orderStatusStore.markFailed(Collections.singletonList(voucherOrder.getId()), "订单创建失败");
+            releaseSeckill(voucherOrder.getVoucherId(), voucherOrder.getUserId(),
+                    voucherOrder.getSlot() == null ? 1 : voucherOrder.getSlot());
+        } catch (Exception ex) {
+            // 以上面的错误日志为准人工处理
+            log.error("记录死信订单失败, orderId={}", voucherOrder.getId(), ex);
+        }
+    }
 
-    private IVoucherOrderService proxy;
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本地已标记售罄，直接返回
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 布隆过滤器判断一定不存在的优惠券，不访问redis
+        if (!bloomFilterGuard.mightContain(BloomFilterGuard.Type.VOUCHER, voucherId)) {
+            return Result.fail("优惠券不存在");
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
+        // 限流，超出的请求在访问redis之前直接拒绝
+        if (!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+            return Result.fail("请求过于频繁，请稍后重试");
+        }
+        SeckillMeta meta = seckillMeta(voucherId);
+        if (meta.stripes > 1) {
+            return seckillStripedVoucher(voucherId, userId, meta);
+        }
+        // stream模式下订单由脚本原子投递到消息队列，需要先生成订单id
+        boolean streamQueue = isStreamQueue();
+        long orderId = streamQueue ? redisIdWorker.nextId("order") : 0L;
+        Long day = meta.day();
         // 1. 执行lua脚本
-        Long result = stringRedisTemplate.execute(
+        List<?> result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
                 voucherId.toString(),
-                userId.toString()
+                userId.toString(),
+                String.valueOf(orderId),
+                streamQueue ? SECKILL_ORDER_STREAM_KEY : "",
+                isBitmapBuyer() ? "bitmap" : "set",
+                String.valueOf(meta.buyerExpireAt),
+                String.valueOf(System.currentTimeMillis()),
+                String.valueOf(meta.userLimit),
+                day == null ? "" : day.toString(),
+                String.valueOf(meta.quotaExpireAt(day))
         );
         // 2. 判断结果是否为0
-        int r = result.intValue();
+        int r = ((Long) result.get(0)).intValue();
+        int slot = ((Long) result.get(1)).intValue();
         if (r != 0) {
             // 2.1 不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (r == 1) {
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
 
-        // 2.2 为0，有购买资格，订单信息保存到队列
-        // 保存订单信息到队列
-        VoucherOrder voucherOrder = new VoucherOrder();
+        // 2.2 为0，有购买资格。stream模式下脚本已投递订单，直接返回
+        if (streamQueue) {
+            return Result.ok(orderId);
+        }
         // 订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        // 用户id
-        voucherOrder.setUserId(userId);
-        // 代金卷id
-        voucherOrder.setVoucherId(voucherId);
-        //添加到阻塞队列
-        voucherOrderBlockingQueue.add(voucherOrder);
-
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        orderId = redisIdWorker.nextId("order");
+        // 保存订单信息到用户所在通道的环形缓冲区
+        if (!laneOf(userId).offer(orderId, userId, voucherId, slot)) {
+            log.warn("订单缓冲区已满，拒绝秒杀请求 voucherId={} userId={}", voucherId, userId);
+            releaseSeckill(voucherId, userId, slot);
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+
         // 3. 返回订单id
         return Result.ok(orderId);
     }
 
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds, boolean allOrNothing) {
+        List<Long> ids = voucherIds == null ? Collections.emptyList()
+                : voucherIds.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Result.fail("请选择优惠券");
+        }
+        if (ids.size() > MAX_BASKET_SIZE) {
+            return Result.fail("一次最多秒杀" + MAX_BASKET_SIZE + "张优惠券");
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 1.本地判断售罄、限流，分桶的券不能和其他券在同一个脚本中执行
+        Map<Long, SeckillItemDTO> items = new LinkedHashMap<>();
+        List<Long> scripted = new ArrayList<>(ids.size());
+        List<Long> striped = new ArrayList<>();
+        for (Long voucherId : ids) {
+            String error = null;
+            if (seckillSoldOutCache.isSoldOut(voucherId)) {
+                error = "库存不足";
+            } else if (!bloomFilterGuard.mightContain(BloomFilterGuard.Type.VOUCHER, voucherId)) {
+                error = "优惠券不存在";
+            } else if (!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+                error = "请求过于频繁，请稍后重试";
+            } else if (seckillMeta(voucherId).stripes > 1) {
+                if (allOrNothing) {
+                    error = "分桶库存的优惠券不支持整单秒杀";
+                } else {
+                    striped.add(voucherId);
+                }
+            } else {
+                scripted.add(voucherId);
+            }
+            items.put(voucherId, new SeckillItemDTO(voucherId, error == null, null, error));
+        }
+        if (allOrNothing && items.values().stream().anyMatch(item -> !item.getSuccess())) {
+            items.values().stream().filter(SeckillItemDTO::getSuccess)
+                    .forEach(item -> fail(item, seckillFailMessage(8)));
+            return Result.ok(new ArrayList<>(items.values()));
+        }
+        // 2.分桶的券逐张秒杀
+        for (Long voucherId : striped) {
+            Result result = seckillStripedVoucher(voucherId, userId, seckillMeta(voucherId));
+            SeckillItemDTO item = items.get(voucherId);
+            if (result.getSuccess()) {
+                item.setOrderId((Long) result.getData());
+            } else {
+                fail(item, result.getErrorMsg());
+            }
+        }
+        if (!scripted.isEmpty()) {
+            seckillBatch(scripted, userId, allOrNothing, items);
+        }
+        return Result.ok(new ArrayList<>(items.values()));
+    }
+
+    /**
+     * 一次脚本调用秒杀多张未分桶的券，抢到的订单一次投递到用户所在的通道
+     */
+    private void seckillBatch(List<Long> voucherIds, Long userId, boolean allOrNothing, Map<Long, SeckillItemDTO> items) {
+        int n = voucherIds.size();
+        boolean streamQueue = isStreamQueue();
+        long[] orderIds = new long[n];
+        List<String> args = new ArrayList<>(6 + n * 6);
+        Collections.addAll(args, userId.toString(), streamQueue ? SECKILL_ORDER_STREAM_KEY : "",
+                isBitmapBuyer() ? "bitmap" : "set", String.valueOf(System.currentTimeMillis()),
+                allOrNothing ? "1" : "0", String.valueOf(n));
+        for (int i = 0; i < n; i++) {
+            Long voucherId = voucherIds.get(i);
+            SeckillMeta meta = seckillMeta(voucherId);
+            Long day = meta.day();
+            // stream模式下订单由脚本投递，需要先生成订单id
+            orderIds[i] = streamQueue ? redisIdWorker.nextId("order") : 0L;
+            Collections.addAll(args, voucherId.toString(), String.valueOf(orderIds[i]),
+                    String.valueOf(meta.buyerExpireAt), String.valueOf(meta.userLimit),
+                    day == null ? "" : day.toString(), String.valueOf(meta.quotaExpireAt(day)));
+        }
+        List<?> result = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(), args.toArray());
 
-/*    @Override
-    public Result seckillVoucher(Long voucherId) {
-        // 1.查询优惠卷信息
-        SeckillVoucher seckillVoucher = iSeckillVoucherService.getById(voucherId);
-        // 2.判断优惠卷秒杀是否开始
-        if (seckillVoucher.getBeginTime().isAfter(LocalDateTime.now())) {
-            return Result.fail("秒杀还未开始");
+        // 抢到的订单
+        long[] approvedIds = new long[n];
+        long[] approvedVouchers = new long[n];
+        int[] slots = new int[n];
+        int approved = 0;
+        for (int i = 0; i < n; i++) {
+            Long voucherId = voucherIds.get(i);
+            int r = ((Long) result.get(2 * i)).intValue();
+            SeckillItemDTO item = items.get(voucherId);
+            if (r != 0) {
+                if (r == 1) {
+                    seckillSoldOutCache.markSoldOut(voucherId);
+                }
+                fail(item, seckillFailMessage(r));
+                continue;
+            }
+            approvedIds[approved] = streamQueue ? orderIds[i] : redisIdWorker.nextId("order");
+            approvedVouchers[approved] = voucherId;
+            slots[approved] = ((Long) result.get(2 * i + 1)).intValue();
+            item.setOrderId(approvedIds[approved]);
+            approved++;
+        }
+        if (streamQueue || approved == 0) {
+            return;
+        }
+        if (!laneOf(userId).offerAll(approvedIds, userId, approvedVouchers, slots, approved)) {
+            log.warn("订单缓冲区已满，拒绝秒杀请求 voucherIds={} userId={}", voucherIds, userId);
+            for (int i = 0; i < approved; i++) {
+                releaseSeckill(approvedVouchers[i], userId, slots[i]);
+                fail(items.get(approvedVouchers[i]), "系统繁忙，请稍后重试");
+            }
+        }
+    }
+
+    private static void fail(SeckillItemDTO item, String errorMsg) {
+        item.setSuccess(false);
+        item.setOrderId(null);
+        item.setErrorMsg(errorMsg);
+    }
+
+    /**
+     * 分桶库存秒杀：先在用户所属的桶内完成一人一单判断和扣减，
+     * 桶内库存不足时依次到兄弟桶扣减，全部为空时写入售罄标记，后续请求不再扫描
+     */
+    private Result seckillStripedVoucher(Long voucherId, Long userId, SeckillMeta meta) {
+        // 分桶脚本只能访问本桶的key，排队在调用脚本前判断
+        Boolean admitted = seckillWaitingRoom.isAdmitted(voucherId, userId);
+        if (admitted == null || !admitted) {
+            return Result.fail(seckillFailMessage(admitted == null ? 6 : 7));
         }
-        // 3.判断优惠卷秒杀是否结束
-        if (seckillVoucher.getEndTime().isBefore(LocalDateTime.now())) {
-            return Result.fail("秒杀已经结束");
+        int stripes = meta.stripes;
+        int home = Math.floorMod(Long.hashCode(userId), stripes);
+        boolean quota = meta.quota();
+        boolean bitmap = !quota && isBitmapBuyer();
+        Long day = meta.day();
+        String buyerKey = buyerKey(voucherId, userId, meta, home, day);
+        long offset = userId & ((1L << SECKILL_BUYER_SHARD_BITS) - 1);
+        List<?> result = stringRedisTemplate.execute(
+                SECKILL_STRIPE_SCRIPT,
+                Arrays.asList(stripeKey(SECKILL_STOCK_KEY, voucherId, home), buyerKey,
+                        stripeKey(SECKILL_WINDOW_KEY, voucherId, home)),
+                userId.toString(), "claim", quota ? "quota" : bitmap ? "bitmap" : "set", String.valueOf(offset),
+                String.valueOf(quota ? meta.quotaExpireAt(day) : meta.buyerExpireAt),
+                String.valueOf(System.currentTimeMillis()),
+                String.valueOf(meta.userLimit), day == null ? "" : day.toString()
+        );
+        int r = ((Long) result.get(0)).intValue();
+        int slot = ((Long) result.get(1)).intValue();
+        if (r != 0 && r != 5) {
+            return Result.fail(seckillFailMessage(r));
         }
-        // 4.判断库存是否充足
-        if (seckillVoucher.getStock() <= 0) {
+        // 5: 本桶库存不足，用户已在本桶占位
+        if (r == 5 && !taken(voucherId, userId, home, stripes)) {
+            // 所有桶都没有库存，释放用户在本桶的占位
+            if (quota) {
+                stringRedisTemplate.opsForHash().increment(buyerKey, userId.toString(), -1);
+            } else if (bitmap) {
+                stringRedisTemplate.opsForValue().setBit(buyerKey, offset, false);
+            } else {
+                stringRedisTemplate.opsForSet().remove(buyerKey, userId.toString());
+            }
+            seckillSoldOutCache.markSoldOut(voucherId);
             return Result.fail("库存不足");
         }
-        Long userId = UserHolder.getUser().getId();
+        // 有购买资格，订单信息保存到队列
+        long orderId = redisIdWorker.nextId("order");
+        if (isStreamQueue()) {
+            // 分桶模式下stream与库存不在同一slot，无法在脚本内原子投递
+            Map<String, String> fields = new HashMap<>(8);
+            fields.put("userId", userId.toString());
+            fields.put("voucherId", voucherId.toString());
+            fields.put("id", String.valueOf(orderId));
+            fields.put("slot", String.valueOf(slot));
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM_KEY, fields);
+        } else if (!laneOf(userId).offer(orderId, userId, voucherId, slot)) {
+            log.warn("订单缓冲区已满，拒绝秒杀请求 voucherId={} userId={}", voucherId, userId);
+            releaseSeckill(voucherId, userId, slot);
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 用户在桶内的下单记录key：限购模式为购买数量hash，bitmap模式按用户id分段，段号拼在桶的hash tag之后
+     * @param home 用户所属的桶，-1表示未分桶
+     * @param day 按天限购时的天数，否则为null
+     */
+    private String buyerKey(Long voucherId, Long userId, SeckillMeta meta, int home, Long day) {
+        if (meta.quota()) {
+            String key = home < 0 ? SECKILL_QUOTA_KEY + voucherId : stripeKey(SECKILL_QUOTA_KEY, voucherId, home);
+            return day == null ? key : key + ":" + day;
+        }
+        if (isBitmapBuyer()) {
+            String key = home < 0 ? SECKILL_BUYER_KEY + voucherId : stripeKey(SECKILL_BUYER_KEY, voucherId, home);
+            return key + ":" + (userId >> SECKILL_BUYER_SHARD_BITS);
+        }
+        return home < 0 ? SECKILL_ORDER_KEY + voucherId : stripeKey(SECKILL_ORDER_KEY, voucherId, home);
+    }
 
+    /**
+     * 撤销秒杀脚本中的库存扣减和下单记录，用于订单缓冲区已满和订单超时取消
+     * 分桶时库存还到用户所属的桶(从兄弟桶扣减的也还到这里，总量不变)
+     * @param slot 用户的第几单，按天限购时由它得到下单的天数
+     */
+    private void releaseSeckill(Long voucherId, Long userId, int slot) {
+        SeckillMeta meta = seckillMeta(voucherId);
+        int home = meta.stripes > 1 ? Math.floorMod(Long.hashCode(userId), meta.stripes) : -1;
+        String stockKey = home < 0 ? SECKILL_STOCK_KEY + voucherId : stripeKey(SECKILL_STOCK_KEY, voucherId, home);
+        String buyerKey = buyerKey(voucherId, userId, meta, home, meta.limitDaily ? (long) (slot / SECKILL_DAILY_SLOTS) : null);
+        if (meta.quota()) {
+            stringRedisTemplate.opsForHash().increment(buyerKey, userId.toString(), -1);
+        } else if (isBitmapBuyer()) {
+            stringRedisTemplate.opsForValue().setBit(buyerKey, userId & ((1L << SECKILL_BUYER_SHARD_BITS) - 1), false);
+        } else {
+            stringRedisTemplate.opsForSet().remove(buyerKey, userId.toString());
+        }
+        stringRedisTemplate.opsForValue().increment(stockKey);
+        // 库存已归还，清除所有节点的售罄标记
+        stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucherId);
+        seckillSoldOutCache.reset(voucherId);
+    }
 
-        // 创建锁对象
-        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
+    @Override
+    public boolean cancelVoucherOrder(Long orderId) {
+        // 1.数据库中取消订单并归还库存
+        VoucherOrder voucherOrder = proxy.cancelUnpaidOrder(orderId);
+        if (voucherOrder == null) {
+            return false;
+        }
+        // 2.事务提交后归还redis库存，移除下单记录，用户可以重新抢购
+        releaseSeckill(voucherOrder.getVoucherId(), voucherOrder.getUserId(),
+                voucherOrder.getSlot() == null ? 1 : voucherOrder.getSlot());
+        log.info("取消超时未支付订单 orderId={} userId={} voucherId={}",
+                orderId, voucherOrder.getUserId(), voucherOrder.getVoucherId());
+        return true;
+    }
 
+    @Override
+    @Transactional
+    public VoucherOrder cancelUnpaidOrder(Long orderId) {
+        // 只取消未支付的订单，已支付或已取消的订单不受影响
+        boolean cancelled = update().set("status", ORDER_STATUS_CANCELLED)
+                .eq("id", orderId).eq("status", ORDER_STATUS_UNPAID)
+                .update();
+        if (!cancelled) {
+            return null;
+        }
+        VoucherOrder voucherOrder = query().select("id", "user_id", "voucher_id", "slot").eq("id", orderId).one();
+        iSeckillVoucherService.update().setSql("stock=stock+1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        return voucherOrder;
+    }
 
-        // 使用redisson创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            // 获取锁失败,返回失败信息或者重试
-            return Result.fail("不允许重复下单");
+    /**
+     * 用户所属的桶已空，依次尝试从兄弟桶扣减库存
+     * @return 是否扣减成功
+     */
+    private boolean taken(Long voucherId, Long userId, int home, int stripes) {
+        String soldOutKey = SECKILL_SOLD_OUT_KEY + voucherId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(soldOutKey))) {
+            return false;
+        }
+        for (int k = 1; k < stripes; k++) {
+            int i = (home + k) % stripes;
+            List<?> result = stringRedisTemplate.execute(
+                    SECKILL_STRIPE_SCRIPT,
+                    Arrays.asList(stripeKey(SECKILL_STOCK_KEY, voucherId, i), stripeKey(SECKILL_ORDER_KEY, voucherId, i),
+                            stripeKey(SECKILL_WINDOW_KEY, voucherId, i)),
+                    userId.toString(), "take", "set", "0", "0", "0"
+            );
+            if (result != null && Long.valueOf(0L).equals(result.get(0))) {
+                return true;
+            }
         }
+        stringRedisTemplate.opsForValue().set(soldOutKey, "1");
+        return false;
+    }
 
-        try {
-            //2.获取代理对象
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            // 3.创建订单
-            return proxy.createVoucherOder(voucherId);
-        } finally {
-            lock.unlock();
+    /**
+     * 秒杀脚本返回码对应的提示信息
+     */
+    private static String seckillFailMessage(int code) {
+        switch (code) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            case 6:
+                return "请先领取排队号码";
+            case 7:
+                return "排队中，请稍后重试";
+            case 8:
+                return "整单中有优惠券秒杀失败";
+            default:
+                return "秒杀失败";
+        }
+    }
+
+    /**
+     * 分桶key，桶号放在hash tag内，使同一个桶的库存和用户集合落在同一slot，不同桶分散到不同slot
+     */
+    private static String stripeKey(String prefix, Long voucherId, int stripe) {
+        return prefix + "{" + voucherId + ":" + stripe + "}";
+    }
+
+    @Override
+    public Result takeSeckillTicket(Long voucherId) {
+        return Result.ok(seckillWaitingRoom.takeTicket(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public Result querySeckillPosition(Long voucherId) {
+        WaitingTicketDTO position = seckillWaitingRoom.position(voucherId, UserHolder.getUser().getId());
+        return position == null ? Result.fail("请先领取排队号码") : Result.ok(position);
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, long timeoutMillis) {
+        return orderStatusStore.await(orderId, Math.min(timeoutMillis, MAX_STATUS_WAIT_MILLIS));
+    }
+
+    @Override
+    public Set<Long> queryQueuedBuyers(Long voucherId) {
+        Set<Long> userIds = new HashSet<>();
+        if (isStreamQueue()) {
+            collectStreamBuyers(voucherId, userIds);
+            return userIds;
+        }
+        if (lanes != null) {
+            for (VoucherOrderLane lane : lanes) {
+                lane.collectQueuedBuyers(voucherId, userIds);
+            }
+        }
+        for (Path file : oldJournals) {
+            if (!Files.exists(file)) {
+                continue;
+            }
+            try {
+                for (VoucherOrder voucherOrder : OrderJournal.replay(file)) {
+                    if (voucherId.equals(voucherOrder.getVoucherId())) {
+                        userIds.add(voucherOrder.getUserId());
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("读取订单日志失败: " + file, e);
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * 从最早的未确认消息(没有时从最后投递的消息)读到stream末尾，包含未确认和未投递的消息
+     */
+    private void collectStreamBuyers(Long voucherId, Set<Long> userIds) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        String start = null;
+        PendingMessagesSummary summary = ops.pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP);
+        if (summary != null && summary.getTotalPendingMessages() > 0) {
+            start = summary.minMessageId();
+        } else {
+            start = ops.groups(SECKILL_ORDER_STREAM_KEY).stream()
+                    .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                    .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                    .findFirst().orElse(null);
+        }
+        if (start == null) {
+            return;
+        }
+        String voucher = voucherId.toString();
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = ops.range(SECKILL_ORDER_STREAM_KEY,
+                    Range.rightUnbounded(Range.Bound.inclusive(start)), RedisZSetCommands.Limit.limit().count(batchSize));
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> value = record.getValue();
+                if (voucher.equals(value.get("voucherId"))) {
+                    userIds.add(Long.valueOf(value.get("userId").toString()));
+                }
+            }
+            if (records.size() < batchSize) {
+                break;
+            }
+            // 下一页从最后一条消息的下一个id开始
+            RecordId last = records.get(records.size() - 1).getId();
+            start = last.getTimestamp() + "-" + (last.getSequence() + 1);
         }
+    }
 
-    }*/
+    @Override
+    public Map<String, Object> queryOrderQueueStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rateLimit", seckillRateLimiter.stats());
+        stats.put("pendingTimeouts", orderTimeoutScheduler.pending());
+        stats.put("deadLetters", deadLetters.sum());
+        stats.put("queue", isStreamQueue() ? "stream" : "memory");
+        if (isStreamQueue()) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP);
+            stats.put("streamLength", stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM_KEY));
+            stats.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+            return stats;
+        }
+        List<Map<String, Object>> laneStats = new ArrayList<>(lanes.length);
+        for (VoucherOrderLane lane : lanes) {
+            laneStats.add(lane.stats());
+        }
+        stats.put("lanes", laneStats);
+        return stats;
+    }
 
     @Transactional
-    public void createVoucherOder(VoucherOrder voucherOrder) {
-        // 一人一单
-        Long userId = voucherOrder.getUserId();
+    public Result createVoucherOder(VoucherOrder voucherOrder) {
         Long voucherId = voucherOrder.getVoucherId();
-        // 查询用户是否已经购买过秒杀卷
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if (count > 0) {
-            log.error("用户已经购买过该优惠卷");
-            return ;
+        if (voucherOrder.getSlot() == null) {
+            voucherOrder.setSlot(1);
+        }
+        // 1.插入订单，限购由唯一索引(voucher_id, user_id, slot)保证，不需要加锁和先查询
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            // 订单已存在，只有这种情况才查询是重复投递还是重复下单
+            VoucherOrder existed = query().select("id", "status").eq("id", voucherOrder.getId()).one();
+            if (existed != null) {
+                // 同一订单重复投递，已经创建过；已取消的订单库存已归还，不能再当作创建成功
+                if (Integer.valueOf(ORDER_STATUS_CANCELLED).equals(existed.getStatus())) {
+                    return Result.fail("订单已取消");
+                }
+                return Result.ok(voucherOrder.getId());
+            }
+            if (!takeCancelledSlot(voucherOrder)) {
+                log.error("用户已经购买过该优惠卷");
+                return Result.fail("不能重复下单");
+            }
         }
 
-        // 5.扣减库存
+        // 2.扣减库存，放在插入之后，缩短持有优惠券行锁的时间
         // 乐观锁解决超卖问题
         boolean success = iSeckillVoucherService.update().setSql("stock=stock-1")
                 .eq("voucher_id", voucherId).gt("stock", 0)
                 .update();
         if (!success) {
             log.error("库存不足");
-            return ;
+            // 回滚已插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("库存不足");
+        }
+        return Result.ok(voucherOrder.getId());
+    }
+
+    /**
+     * 超时取消的订单被同一用户重新抢购：脚本中购买数量已减回，再次分到的slot可能被同期更晚的订单占用，
+     * 因此把同期(按天限购时为同一天)任意一个已取消订单的slot移到{@link #CANCELLED_SLOT_BASE}之后，
+     * 新订单占用它原来的slot插入。已取消的订单保持原id，不改写主键
+     * @return 是否插入成功，false表示同期没有已取消的订单，是重复下单
+     */
+    private boolean takeCancelledSlot(VoucherOrder voucherOrder) {
+        Long userId = voucherOrder.getUserId();
+        Long voucherId = voucherOrder.getVoucherId();
+        int from = 0;
+        int to = CANCELLED_SLOT_BASE - 1;
+        if (seckillMeta(voucherId).limitDaily) {
+            from = voucherOrder.getSlot() / SECKILL_DAILY_SLOTS * SECKILL_DAILY_SLOTS;
+            to = from + SECKILL_DAILY_SLOTS - 1;
+        }
+        VoucherOrder cancelled = query().select("id", "slot").eq("user_id", userId).eq("voucher_id", voucherId)
+                .eq("status", ORDER_STATUS_CANCELLED).between("slot", from, to)
+                .last("limit 1").one();
+        if (cancelled == null) {
+            return false;
+        }
+        // 同一用户的订单由同一个线程串行创建，移走的slot依次递增
+        VoucherOrder last = query().select("max(slot) as slot").eq("user_id", userId).eq("voucher_id", voucherId)
+                .ge("slot", CANCELLED_SLOT_BASE).one();
+        int movedSlot = last == null || last.getSlot() == null ? CANCELLED_SLOT_BASE : last.getSlot() + 1;
+        boolean moved = update().set("slot", movedSlot)
+                .eq("id", cancelled.getId()).eq("status", ORDER_STATUS_CANCELLED)
+                .update();
+        if (!moved) {
+            return false;
         }
+        voucherOrder.setSlot(cancelled.getSlot());
+        return getBaseMapper().insertIgnore(voucherOrder) > 0;
+    }
 
-        // 6.生成订单
-        save(voucherOrder);
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1. 批内去重，同一用户同一优惠券的同一slot只保留第一单
+        List<VoucherOrder> rejected = new ArrayList<>();
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (voucherOrder.getSlot() == null) {
+                voucherOrder.setSlot(1);
+            }
+            VoucherOrder first = unique.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId()
+                    + ":" + voucherOrder.getSlot(), voucherOrder);
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                rejected.add(voucherOrder);
+            }
+        }
+        List<VoucherOrder> orders = new ArrayList<>(unique.values());
+
+        // 2. 多行插入订单，唯一索引忽略已存在的订单；有订单已存在(重复投递或重复下单)时回滚，
+        // 由调用方逐条处理区分，正常情况下不需要额外查询
+        int inserted = getBaseMapper().insertIgnoreBatch(orders);
+        if (inserted != orders.size()) {
+            throw new IllegalStateException("批内有已存在的订单, size=" + orders.size() + ", inserted=" + inserted);
+        }
+
+        // 3. 按优惠券合并扣减库存，库存不够整批扣减时抛出异常回滚，由调用方逐条处理
+        Map<Long, Long> countByVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, count) -> {
+            boolean success = iSeckillVoucherService.update().setSql("stock=stock-" + count)
+                    .eq("voucher_id", voucherId).ge("stock", count)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足, voucherId=" + voucherId);
+            }
+        });
+        return rejected;
     }
 }
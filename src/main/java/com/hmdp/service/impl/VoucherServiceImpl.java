@@ -7,29 +7,95 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillWaitingRoom;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
  *  服务实现类
  * </p>
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    private static final int PRELOAD_PAGE_SIZE = 500;
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    /**
+     * 秒杀库存分桶数，大于1时开启分桶
+     */
+    @Value("${hmdp.seckill.stock-stripes:1}")
+    private int stockStripes;
+
+    /**
+     * 秒杀结束后redis中秒杀数据保留的小时数
+     */
+    @Value("${hmdp.seckill.buyer-retain-hours:24}")
+    private long retainHours;
+
+    /**
+     * 启动时预热：把未结束的秒杀券的库存和时间窗口加载到redis
+     */
+    @PostConstruct
+    private void preloadSeckillVouchers() {
+        try {
+            long lastId = 0;
+            int count = 0;
+            while (true) {
+                // 按主键分页，避免大偏移量
+                List<SeckillVoucher> page = seckillVoucherService.query()
+                        .gt("end_time", LocalDateTime.now())
+                        .gt("voucher_id", lastId)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + PRELOAD_PAGE_SIZE)
+                        .list();
+                for (SeckillVoucher seckillVoucher : page) {
+                    saveSeckillToRedis(seckillVoucher, false);
+                }
+                count += page.size();
+                if (page.size() < PRELOAD_PAGE_SIZE) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getVoucherId();
+            }
+            log.info("预热秒杀券 {} 张", count);
+        } catch (Exception e) {
+            log.error("预热秒杀券失败", e);
+        }
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -38,19 +104,92 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         return Result.ok(vouchers);
     }
 
+    @Override
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        // 写入布隆过滤器
+        bloomFilterGuard.add(BloomFilterGuard.Type.VOUCHER, voucher.getId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
+        // 写入布隆过滤器，事务回滚时只是多一个误判
+        bloomFilterGuard.add(BloomFilterGuard.Type.VOUCHER, voucher.getId());
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        seckillVoucher.setUserLimit(voucher.getUserLimit() == null ? 1 : voucher.getUserLimit());
+        seckillVoucher.setLimitDaily(Boolean.TRUE.equals(voucher.getLimitDaily()));
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        // 保存秒杀库存和时间窗口到redis
+        saveSeckillToRedis(seckillVoucher, true);
+        // 库存已补充，清除售罄标记
+        stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucher.getId());
+        seckillSoldOutCache.reset(voucher.getId());
+    }
+
+    /**
+     * 保存秒杀库存和时间窗口到redis
+     * @param seckillVoucher 秒杀券
+     * @param overwrite true:新建秒杀券，覆盖库存并按配置分桶; false:预热，只补充redis中缺失的库存
+     */
+    private void saveSeckillToRedis(SeckillVoucher seckillVoucher, boolean overwrite) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        int stripes = stockStripes;
+        if (!overwrite) {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_STRIPES_KEY + voucherId);
+            stripes = value == null ? 1 : Integer.parseInt(value);
+        }
+        // 时间窗口，秒杀脚本据此判断是否开始、结束
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        long expireAt = seckillVoucher.getEndTime() == null ? 0
+                : toEpochMilli(seckillVoucher.getEndTime().plusHours(retainHours));
+        if (overwrite) {
+            // 新建的秒杀券按配置开启排队
+            seckillWaitingRoom.open(voucherId, toEpochMilli(seckillVoucher.getBeginTime()), expireAt);
+        }
+        if (stripes <= 1) {
+            saveStock(SECKILL_STOCK_KEY + voucherId, stock, overwrite);
+            saveWindow(SECKILL_WINDOW_KEY + voucherId, window, expireAt);
+            return;
+        }
+        // 库存拆分到多个桶 seckill:stock:{voucherId:i}，余数分给前几个桶，每个桶一份时间窗口
+        for (int i = 0; i < stripes; i++) {
+            int bucketStock = stock / stripes + (i < stock % stripes ? 1 : 0);
+            String tag = "{" + voucherId + ":" + i + "}";
+            saveStock(SECKILL_STOCK_KEY + tag, bucketStock, overwrite);
+            saveWindow(SECKILL_WINDOW_KEY + tag, window, expireAt);
+        }
+        // 最后写入分桶数，秒杀请求据此判断是否分桶
+        stringRedisTemplate.opsForValue().set(SECKILL_STRIPES_KEY + voucherId, String.valueOf(stripes));
+    }
+
+    private void saveStock(String key, int stock, boolean overwrite) {
+        if (overwrite) {
+            stringRedisTemplate.opsForValue().set(key, String.valueOf(stock));
+        } else {
+            stringRedisTemplate.opsForValue().setIfAbsent(key, String.valueOf(stock));
+        }
+    }
+
+    private void saveWindow(String key, Map<String, String> window, long expireAt) {
+        stringRedisTemplate.opsForHash().putAll(key, window);
+        if (expireAt > 0) {
+            stringRedisTemplate.expireAt(key, new Date(expireAt));
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
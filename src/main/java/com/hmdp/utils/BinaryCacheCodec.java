@@ -0,0 +1,409 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编码，字段按名称排序后依次写入值，不写字段名
+ * 布局: [magic 1字节][flags 1字节][类结构指纹 4字节][逻辑过期时间(毫秒) 8字节，有逻辑过期时才写][null位图][非null字段的值]...
+ * 整数为zigzag变长编码，字符串为长度+UTF-8，时间为秒+纳秒，不支持的字段类型保存为json字符串。
+ * 类增删字段后指纹变化，旧数据解码返回null，由调用方按未命中重新加载；被截断或损坏的数据同样返回null。
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    /**
+     * 不是合法的UTF-8首字节，不会与json数据混淆
+     */
+    static final byte MAGIC = (byte) 0xB1;
+
+    private static final int FLAG_LOGIC_EXPIRE = 1;
+    private static final int FLAG_NULL_VALUE = 2;
+
+    private static final int LONG = 0;
+    private static final int INT = 1;
+    private static final int BOOLEAN = 2;
+    private static final int DOUBLE = 3;
+    private static final int FLOAT = 4;
+    private static final int STRING = 5;
+    private static final int LOCAL_DATE_TIME = 6;
+    private static final int LOCAL_DATE = 7;
+    private static final int BIG_DECIMAL = 8;
+    private static final int ENUM = 9;
+    private static final int JSON = 10;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value, LocalDateTime expireTime) {
+        Output out = new Output(128);
+        out.writeByte(MAGIC);
+        int flags = (expireTime == null ? 0 : FLAG_LOGIC_EXPIRE) | (value == null ? FLAG_NULL_VALUE : 0);
+        out.writeByte(flags);
+        Schema schema = value == null ? null : schemaOf(value.getClass());
+        out.writeInt(schema == null ? 0 : schema.fingerprint);
+        if (expireTime != null) {
+            out.writeLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        if (schema != null) {
+            schema.write(value, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public boolean accepts(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public RedisData decode(byte[] bytes, Class<?> type, boolean logicExpire) {
+        Input in = new Input(bytes, 1);
+        RedisData redisData = new RedisData();
+        int flags;
+        int fingerprint;
+        try {
+            flags = in.readByte();
+            if (((flags & FLAG_LOGIC_EXPIRE) != 0) != logicExpire) {
+                return null;
+            }
+            fingerprint = in.readInt();
+            if (logicExpire) {
+                redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault()));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // 数据被截断
+            return null;
+        }
+        if ((flags & FLAG_NULL_VALUE) != 0) {
+            return redisData;
+        }
+        // 类型本身不支持(如缺少无参构造器)时直接抛出，不当作数据损坏
+        Schema schema = schemaOf(type);
+        if (schema.fingerprint != fingerprint) {
+            return null;
+        }
+        try {
+            redisData.setData(schema.read(in));
+        } catch (RuntimeException e) {
+            // 截断或损坏的数据读取时可能越界、遇到非法的枚举名、时间、数字或json，按未命中处理
+            return null;
+        }
+        return redisData;
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static final class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int[] kinds;
+        private final int fingerprint;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            this.kinds = new int[fields.length];
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < fields.length; i++) {
+                kinds[i] = kindOf(fields[i].getType());
+                signature.append(',').append(fields[i].getName()).append(':').append(fields[i].getType().getName());
+            }
+            this.fingerprint = signature.toString().hashCode();
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("缓存类型缺少无参构造器: " + type.getName(), e);
+            }
+        }
+
+        void write(Object value, Output out) {
+            int bitmap = out.skip((fields.length + 7) >>> 3);
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Object v = fields[i].get(value);
+                    if (v == null) {
+                        out.setBit(bitmap, i);
+                    } else {
+                        writeValue(kinds[i], v, out);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        Object read(Input in) {
+            int bitmap = in.skip((fields.length + 7) >>> 3);
+            try {
+                Object value = constructor.newInstance();
+                for (int i = 0; i < fields.length; i++) {
+                    if (!in.bit(bitmap, i)) {
+                        fields[i].set(value, readValue(kinds[i], fields[i], in));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return LONG;
+        }
+        if (type == Integer.class || type == int.class) {
+            return INT;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return BOOLEAN;
+        }
+        if (type == Double.class || type == double.class) {
+            return DOUBLE;
+        }
+        if (type == Float.class || type == float.class) {
+            return FLOAT;
+        }
+        if (type == String.class) {
+            return STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return LOCAL_DATE_TIME;
+        }
+        if (type == LocalDate.class) {
+            return LOCAL_DATE;
+        }
+        if (type == BigDecimal.class) {
+            return BIG_DECIMAL;
+        }
+        if (type.isEnum()) {
+            return ENUM;
+        }
+        return JSON;
+    }
+
+    private static void writeValue(int kind, Object v, Output out) {
+        switch (kind) {
+            case LONG:
+                out.writeVarLong((Long) v);
+                break;
+            case INT:
+                out.writeVarLong((Integer) v);
+                break;
+            case BOOLEAN:
+                out.writeByte((Boolean) v ? 1 : 0);
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToRawLongBits((Double) v));
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToRawIntBits((Float) v));
+                break;
+            case STRING:
+                out.writeString((String) v);
+                break;
+            case LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) v;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            case LOCAL_DATE:
+                out.writeVarLong(((LocalDate) v).toEpochDay());
+                break;
+            case BIG_DECIMAL:
+                out.writeString(v.toString());
+                break;
+            case ENUM:
+                out.writeString(((Enum<?>) v).name());
+                break;
+            default:
+                out.writeString(JSONUtil.toJsonStr(v));
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readValue(int kind, Field field, Input in) {
+        switch (kind) {
+            case LONG:
+                return in.readVarLong();
+            case INT:
+                return (int) in.readVarLong();
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case STRING:
+                return in.readString();
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.ofEpochSecond(in.readVarLong(), (int) in.readVarLong(), ZoneOffset.UTC);
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(in.readVarLong());
+            case BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            case ENUM:
+                return Enum.valueOf((Class) field.getType(), in.readString());
+            default:
+                return JSONUtil.toBean(in.readString(), field.getGenericType(), false);
+        }
+    }
+
+    private static final class Output {
+        private byte[] buf;
+        private int pos;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            // zigzag，绝对值小的负数也只占少量字节
+            long z = (v << 1) ^ (v >> 63);
+            while ((z & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[pos++] = (byte) z;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        /**
+         * 预留n个字节(初始为0)，返回起始位置
+         */
+        int skip(int n) {
+            ensure(n);
+            int start = pos;
+            pos += n;
+            return start;
+        }
+
+        void setBit(int start, int index) {
+            buf[start + (index >>> 3)] |= (byte) (1 << (index & 7));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long z = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf[pos++];
+                z |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (z >>> 1) ^ -(z & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        int skip(int n) {
+            int start = pos;
+            pos += n;
+            return start;
+        }
+
+        boolean bit(int start, int index) {
+            return (buf[start + (index >>> 3)] & (1 << (index & 7))) != 0;
+        }
+    }
+}
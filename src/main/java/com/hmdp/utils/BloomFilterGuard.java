@@ -0,0 +1,271 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.mapper.VoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+/**
+ * 按id查询店铺、用户、优惠券前的布隆过滤器，一定不存在的id直接返回，不访问redis和数据库，
+ * 避免扫描随机id的请求在redis中写满空值并逐个查询数据库。
+ * 启动后先创建过滤器接收新增的id，再在后台按主键分批扫描表加载已有id，加载完成前全部放行；
+ * 新增数据时写入本地并通过redis发布订阅通知其他节点，另外定期增量扫描新插入的id，兜底丢失的通知。
+ * 删除的数据仍会通过过滤器，由缓存空值处理。
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard implements MessageListener {
+
+    public enum Type {
+        SHOP, USER, VOUCHER
+    }
+
+    private static final int SCAN_BATCH = 10000;
+    /**
+     * 增量扫描时从已扫描的最大id往回重扫的数量，覆盖id较小但提交较晚的事务
+     */
+    private static final long RESCAN_OVERLAP = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final Map<Type, BaseMapper<?>> mappers = new EnumMap<>(Type.class);
+
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 每种数据的预计数量，实际按表中行数的2倍和该值取大
+     */
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    /**
+     * 期望误判率
+     */
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 每个过滤器的内存上限(MB)，超出时按上限分配，误判率相应升高
+     */
+    @Value("${hmdp.bloom.max-memory-mb:16}")
+    private long maxMemoryMb;
+
+    /**
+     * 在扫描之前创建，扫描期间新增的id也写入，不会因为扫描已经经过而漏掉
+     */
+    private final AtomicReferenceArray<IdBloomFilter> filters = new AtomicReferenceArray<>(Type.values().length);
+    /**
+     * 扫描完成后置为1，过滤器才开始拦截，之前全部放行
+     */
+    private final AtomicIntegerArray loaded = new AtomicIntegerArray(Type.values().length);
+    /**
+     * 已扫描到的最大id
+     */
+    private final AtomicLongArray scannedIds = new AtomicLongArray(Type.values().length);
+    private final Map<Type, LongAdder> rejections = new EnumMap<>(Type.class);
+
+    public BloomFilterGuard(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            ShopMapper shopMapper, UserMapper userMapper, VoucherMapper voucherMapper) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        mappers.put(Type.SHOP, shopMapper);
+        mappers.put(Type.USER, userMapper);
+        mappers.put(Type.VOUCHER, voucherMapper);
+        for (Type type : Type.values()) {
+            rejections.put(type, new LongAdder());
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        Thread loader = new Thread(() -> {
+            for (Type type : Type.values()) {
+                try {
+                    create(type);
+                } catch (Exception e) {
+                    log.error("布隆过滤器创建失败，{}不过滤", type, e);
+                }
+            }
+            for (Type type : Type.values()) {
+                try {
+                    load(type);
+                } catch (Exception e) {
+                    log.error("布隆过滤器加载失败，{}暂不过滤", type, e);
+                }
+            }
+        }, "bloom-filter-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * @return false:id一定不存在；未开启或未加载完成时返回true
+     */
+    public boolean mightContain(Type type, Long id) {
+        if (id == null) {
+            return false;
+        }
+        IdBloomFilter filter = filter(type);
+        if (filter == null || loaded.get(type.ordinal()) == 0 || filter.mightContain(id)) {
+            return true;
+        }
+        rejections.get(type).increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后调用，写入本地并通知其他节点
+     */
+    public void add(Type type, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        IdBloomFilter filter = filter(type);
+        // 过滤器创建之前新增的数据已经提交，由创建之后开始的扫描加载
+        if (filter != null) {
+            filter.add(id);
+        }
+        try {
+            stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, type + ":" + id);
+        } catch (Exception e) {
+            // 通知失败时其他节点在下次增量扫描时加载
+            log.warn("发布布隆过滤器新增消息失败: {}:{}", type, id, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            int index = body.indexOf(':');
+            IdBloomFilter filter = filter(Type.valueOf(body.substring(0, index)));
+            if (filter != null) {
+                filter.add(Long.parseLong(body.substring(index + 1)));
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            log.warn("无效的布隆过滤器新增消息: {}", body);
+        }
+    }
+
+    /**
+     * 增量扫描上次扫描之后插入的id
+     */
+    @Scheduled(initialDelayString = "#{${hmdp.bloom.sync-interval-seconds:10} * 1000}",
+            fixedDelayString = "#{${hmdp.bloom.sync-interval-seconds:10} * 1000}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+        for (Type type : Type.values()) {
+            IdBloomFilter filter = filter(type);
+            if (filter == null || loaded.get(type.ordinal()) == 0) {
+                continue;
+            }
+            try {
+                scan(type, filter, Math.max(0, scannedIds.get(type.ordinal()) - RESCAN_OVERLAP));
+            } catch (Exception e) {
+                log.error("布隆过滤器增量扫描失败: {}", type, e);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Type type : Type.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            IdBloomFilter filter = filter(type);
+            item.put("loaded", filter != null && loaded.get(type.ordinal()) == 1);
+            if (filter != null) {
+                item.put("memoryBytes", filter.bitSize() >>> 3);
+                item.put("hashCount", filter.hashCount());
+                item.put("insertions", filter.insertions());
+                item.put("expectedFpp", filter.expectedFpp());
+            }
+            item.put("rejections", rejections.get(type).sum());
+            stats.put(type.name().toLowerCase(), item);
+        }
+        return stats;
+    }
+
+    /**
+     * 按表中行数确定大小，创建后立即接收新增的id
+     */
+    private void create(Type type) {
+        long rows = mappers.get(type).selectCount(null).longValue();
+        filters.set(type.ordinal(), IdBloomFilter.create(Math.max(expectedInsertions, rows * 2), fpp, maxMemoryMb << 23));
+    }
+
+    /**
+     * 按主键分批扫描全部id，完成后开始拦截
+     */
+    private void load(Type type) {
+        IdBloomFilter filter = filters.get(type.ordinal());
+        if (filter == null) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        scan(type, filter, 0);
+        loaded.set(type.ordinal(), 1);
+        log.info("布隆过滤器{}加载完成: {}个id, {}KB, {}次哈希, 预计误判率{}, 用时{}ms", type, filter.insertions(),
+                filter.bitSize() >>> 13, filter.hashCount(), String.format("%.5f", filter.expectedFpp()),
+                System.currentTimeMillis() - begin);
+    }
+
+    private void scan(Type type, IdBloomFilter filter, long fromId) {
+        long lastId = fromId;
+        while (true) {
+            List<Object> ids = selectIds(mappers.get(type), lastId);
+            for (Object id : ids) {
+                filter.add(((Number) id).longValue());
+            }
+            if (!ids.isEmpty()) {
+                lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            }
+            if (ids.size() < SCAN_BATCH) {
+                break;
+            }
+        }
+        scannedIds.accumulateAndGet(type.ordinal(), lastId, Math::max);
+    }
+
+    private static <T> List<Object> selectIds(BaseMapper<T> mapper, long lastId) {
+        return mapper.selectObjs(new QueryWrapper<T>()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + SCAN_BATCH));
+    }
+
+    private IdBloomFilter filter(Type type) {
+        return enabled ? filters.get(type.ordinal()) : null;
+    }
+}
@@ -1,33 +1,157 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 
 /**
  * 缓存类型工具类
+ * 可按key前缀开启进程内的一级缓存(L1)，保存反序列化后的对象，命中时不访问redis也不解析json。
+ * 写入和删除缓存时通过redis发布订阅通知所有节点删除L1中的key，L1的存活时间兜底丢失的通知。
+ * L1中的对象由多个请求共享，调用方不能修改。
+ * 缓存值的编码可按key前缀选择json或二进制，读取时两种格式都能解码，切换编码不需要清空redis。
+ * queryWithPassThrough中同一key的并发未命中只由一个线程查询数据库，其他线程等待其结果(single flight)，
+ * 可同时用redis互斥锁合并多个节点的加载。
+ * queryBatch系列方法一次MGET查询多个key，未命中的一次查询数据库，再用管道一次写回redis。
  */
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
+    /**
+     * L1中缓存不存在的数据(redis中的空字符串)
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static final CacheCodec JSON_CODEC = new JsonCacheCodec();
+    private static final CacheCodec BINARY_CODEC = new BinaryCacheCodec();
+    /**
+     * 读取时按顺序选择能解码的编码
+     */
+    private static final List<CacheCodec> CODECS = Arrays.asList(BINARY_CODEC, JSON_CODEC);
+
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 开启L1的key前缀，逗号分隔，为空时不开启
+     */
+    @Value("${hmdp.cache.l1.prefixes:}")
+    private String l1Prefixes;
+
+    /**
+     * 每个前缀的L1容量(MB)，按编码后的字节数估算
+     */
+    @Value("${hmdp.cache.l1.max-weight-mb:64}")
+    private long l1MaxWeightMb;
+
+    /**
+     * L1中的对象最长存活时间(秒)，即丢失失效通知时最多读到多旧的数据
+     */
+    @Value("${hmdp.cache.l1.ttl-seconds:60}")
+    private long l1TtlSeconds;
+
+    /**
+     * 写入时使用二进制编码的key前缀，逗号分隔，其他前缀使用json
+     */
+    @Value("${hmdp.cache.binary-prefixes:}")
+    private String binaryPrefixes;
+    private List<String> binaryPrefixList;
+
+    /**
+     * 当前节点标识，忽略自己发出的失效通知
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    /**
+     * key前缀 -> L1
+     */
+    private final Map<String, SegmentedLruCache<Object>> l1Caches = new LinkedHashMap<>();
+
+    /**
+     * 等待同一key加载结果的最长时间(毫秒)，超时后自己查询数据库
+     */
+    @Value("${hmdp.cache.single-flight.wait-millis:3000}")
+    private long singleFlightWaitMillis;
+
+    /**
+     * 是否同时用redis互斥锁合并多个节点对同一key的加载
+     */
+    @Value("${hmdp.cache.single-flight.redis-lock:false}")
+    private boolean singleFlightRedisLock;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 批量写回时过期时间随机增加的比例，避免同一批key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter-ratio:0.1}")
+    private double ttlJitterRatio;
+
+    /**
+     * 正在加载的key -> 加载结果
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder singleFlightWaits = new LongAdder();
+    private final LongAdder singleFlightTimeouts = new LongAdder();
+
+    // 收到的失效通知数和从发布到删除L1的延迟
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder invalidationLagMillis = new LongAdder();
+    private final AtomicLong maxInvalidationLagMillis = new AtomicLong();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        binaryPrefixList = StrUtil.splitTrim(binaryPrefixes, ',');
+        for (String prefix : StrUtil.splitTrim(l1Prefixes, ',')) {
+            l1Caches.put(prefix, new SegmentedLruCache<>(l1MaxWeightMb << 20,
+                    TimeUnit.SECONDS.toMillis(l1TtlSeconds), Runtime.getRuntime().availableProcessors() * 2));
+        }
+        if (!l1Caches.isEmpty()) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+            log.info("开启本地一级缓存: {}", l1Caches.keySet());
+        }
     }
 
     /**
@@ -38,7 +162,17 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        write(key, codecOf(key).encode(value, null), Expiration.from(time, unit));
+        invalidate(key);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除L1
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidate(key);
     }
 
     /**
@@ -49,10 +183,9 @@ public class CacheClient {
      * @param unit
      */
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        write(key, codecOf(key).encode(value, expireTime), Expiration.persistent());
+        invalidate(key);
     }
 
     /**
@@ -69,30 +202,217 @@ public class CacheClient {
      */
     public <T, ID> T queryWithPassThrough(
             String keyPrefix, ID id, Class<T> type, Function<ID, T> dbFallback,Long time,TimeUnit unit) {
-        // 1. 从redis中查询缓
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 0. 先查L1
+        SegmentedLruCache<Object> l1 = l1Caches.get(keyPrefix);
+        if (l1 != null) {
+            Object cached = l1.get(key);
+            if (cached == NULL_VALUE) {
+                return null;
+            }
+            if (type.isInstance(cached)) {
+                return type.cast(cached);
+            }
+        }
+        // 1. 从redis中查询缓
+        long version = l1 == null ? 0 : l1.version(key);
+        byte[] bytes = read(key);
+        Object cached = decodePassThrough(bytes, type);
         // 2. 判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3. 存在，返回结果
-            return JSONUtil.toBean(json, type);
+        if (cached != null) {
+            // 3. 存在，返回结果；命中“”时返回null。读取期间收到失效通知时不回填L1
+            if (l1 != null) {
+                l1.putIfVersion(key, cached, bytes.length, version);
+            }
+            return cached == NULL_VALUE ? null : type.cast(cached);
         }
-        // 命中是否是“”
-        if (json != null) {
+        // 4. 不存在，同一key的并发未命中只由一个线程查询数据库
+        return singleFlight(key, () -> loadPassThrough(key, id, type, dbFallback, time, unit),
+                () -> dbFallback.apply(id));
+    }
+
+    /**
+     * @return 缓存的对象，命中“”时返回NULL_VALUE，不存在或无法解码(类结构已变化)时返回null
+     */
+    private Object decodePassThrough(byte[] bytes, Class<?> type) {
+        if (bytes == null) {
             return null;
         }
-        // 4. 不存在，查询数据库。判断商铺是否存在.
-        T t = dbFallback.apply(id);
-        if (t == null) {
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+        if (bytes.length == 0) {
+            return NULL_VALUE;
         }
-        // 4.1 商铺存在，写入redis缓存.
-        this.set(key, t, time, unit);
-        // 4.2 不存在，放回404.
-        return t;
+        RedisData cached = decode(bytes, type, false);
+        return cached == null ? null : cached.getData();
     }
 
+    private <T, ID> T loadPassThrough(
+            String key, ID id, Class<T> type, Function<ID, T> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = LOCK_CACHE_KEY + key;
+        boolean locked = false;
+        if (singleFlightRedisLock) {
+            locked = tryLock(lockKey);
+            if (!locked) {
+                // 其他节点正在加载，等待其写入redis，超时后自己查询数据库
+                Object cached = awaitPassThrough(key, type);
+                if (cached != null) {
+                    return cached == NULL_VALUE ? null : type.cast(cached);
+                }
+            }
+        }
+        try {
+            if (locked) {
+                // 获取锁后再查一次，其他节点可能刚刚写入
+                Object cached = decodePassThrough(read(key), type);
+                if (cached != null) {
+                    return cached == NULL_VALUE ? null : type.cast(cached);
+                }
+            }
+            // 查询数据库。判断商铺是否存在.
+            T t = dbFallback.apply(id);
+            if (t == null) {
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                // 与批量查询一致，通知各节点清除本地缓存中已删除的数据
+                invalidate(key);
+                return null;
+            }
+            // 商铺存在，写入redis缓存.
+            this.set(key, t, time, unit);
+            return t;
+        } finally {
+            if (locked) {
+                unlock(lockKey);
+            }
+        }
+    }
+
+    private Object awaitPassThrough(String key, Class<?> type) {
+        long deadline = System.currentTimeMillis() + singleFlightWaitMillis;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                Object cached = decodePassThrough(read(key), type);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        singleFlightTimeouts.increment();
+        log.warn("等待其他节点加载缓存超时: {}", key);
+        return null;
+    }
+
+    /**
+     * 同一key同时只有一个线程执行loader，其他线程等待其结果，从开始等待起最多等待singleFlightWaitMillis，
+     * 超时后执行fallback(直接查询数据库)，不再重新排队或等待redis锁，等待时间不会叠加
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T singleFlight(String key, Supplier<T> loader, Supplier<T> fallback) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            singleFlightWaits.increment();
+            try {
+                return (T) existing.get(singleFlightWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 加载过慢，不再等待，自己查询
+                singleFlightTimeouts.increment();
+                log.warn("等待缓存加载超时: {}", key);
+                return fallback.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        try {
+            T t = loader.get();
+            flight.complete(t);
+            return t;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+
+    /**
+     * 批量查询，解决缓存穿透，语义与queryWithPassThrough相同
+     * @param dbFallback 根据未命中的id批量查询数据库，返回 id -> 数据，不存在的id不在结果中
+     * @return id -> 数据，不存在的id不在结果中
+     */
+    public <T, ID> Map<ID, T> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<T> type,
+            Function<Collection<ID>, Map<ID, T>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, T> result = new HashMap<>(ids.size() * 2);
+        // 0. 先查L1
+        SegmentedLruCache<Object> l1 = l1Caches.get(keyPrefix);
+        List<ID> remote = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            Object cached = l1 == null ? null : l1.get(keyPrefix + id);
+            if (cached == NULL_VALUE) {
+                continue;
+            }
+            if (type.isInstance(cached)) {
+                result.put(id, type.cast(cached));
+            } else {
+                remote.add(id);
+            }
+        }
+        // 1. 一次MGET查询redis
+        long[] versions = l1Versions(l1, keyPrefix, remote);
+        List<byte[]> values = readAll(keyPrefix, remote);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < remote.size(); i++) {
+            ID id = remote.get(i);
+            byte[] bytes = values.get(i);
+            Object cached = decodePassThrough(bytes, type);
+            if (cached == null) {
+                misses.add(id);
+                continue;
+            }
+            if (l1 != null) {
+                l1.putIfVersion(keyPrefix + id, cached, bytes.length, versions[i]);
+            }
+            if (cached != NULL_VALUE) {
+                result.put(id, type.cast(cached));
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        // 2. 未命中的一次查询数据库，用管道一次写回redis，不存在的写入“”
+        Map<ID, T> loaded = dbFallback.apply(misses);
+        CacheCodec codec = codecOf(keyPrefix);
+        long ttlMillis = unit.toMillis(time);
+        long nullTtlMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : misses) {
+                T t = loaded.get(id);
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                if (t == null) {
+                    connection.set(rawKey, new byte[0], Expiration.milliseconds(jitter(nullTtlMillis)),
+                            RedisStringCommands.SetOption.upsert());
+                } else {
+                    connection.set(rawKey, codec.encode(t, null), Expiration.milliseconds(jitter(ttlMillis)),
+                            RedisStringCommands.SetOption.upsert());
+                }
+            }
+            return null;
+        });
+        for (ID id : misses) {
+            invalidate(keyPrefix + id);
+            T t = loaded.get(id);
+            if (t != null) {
+                result.put(id, t);
+            }
+        }
+        return result;
+    }
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
@@ -104,25 +424,49 @@ public class CacheClient {
      */
     public <R,ID> R queryWithLogicExpire(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFullBack,Long time,TimeUnit unit) {
-        // 1. 从redis中查询缓
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 0. 先查L1，L1中保存逻辑过期时间和反序列化后的对象，逻辑过期后走redis触发重建
+        SegmentedLruCache<Object> l1 = l1Caches.get(keyPrefix);
+        if (l1 != null) {
+            Object cached = l1.get(key);
+            if (cached instanceof RedisData) {
+                RedisData cachedData = (RedisData) cached;
+                if (cachedData.getExpireTime().isAfter(LocalDateTime.now()) && type.isInstance(cachedData.getData())) {
+                    return type.cast(cachedData.getData());
+                }
+            }
+        }
+        // 1. 从redis中查询缓
+        long version = l1 == null ? 0 : l1.version(key);
+        byte[] bytes = read(key);
         // 2. 判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3. 存在，返回结果
             return null;
         }
-        // 命中，需要把json反序列化
-        RedisData shopData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) shopData.getData(), type);
+        // 命中，需要反序列化
+        RedisData shopData = decode(bytes, type, true);
+        if (shopData == null) {
+            // 类结构变化导致无法解码，同步重建
+            R r = dbFullBack.apply(id);
+            this.setWithLogicExpire(key, r, time, unit);
+            return r;
+        }
+        R r = type.cast(shopData.getData());
         // 判断是否过期
         if (shopData.getExpireTime().isAfter(LocalDateTime.now())) {
             //未过期，返回店铺数据
+            if (l1 != null) {
+                RedisData cachedData = new RedisData();
+                cachedData.setExpireTime(shopData.getExpireTime());
+                cachedData.setData(r);
+                l1.putIfVersion(key, cachedData, bytes.length, version);
+            }
             return r;
         }
 
         // 过期,尝试获取锁，判断是否获取锁。获取锁后开启独立线程，否则返回店铺信息。
-        String lockKey = LOCK_SHOP_KEY + id;
+        String lockKey = LOCK_CACHE_KEY + key;
         boolean lock = tryLock(lockKey);
         if (lock) {
             CACHE_REBUILD_EXECUTOR.submit(()->{
@@ -144,6 +488,266 @@ public class CacheClient {
     }
 
 
+    private CacheCodec codecOf(String key) {
+        for (String prefix : binaryPrefixList) {
+            if (key.startsWith(prefix)) {
+                return BINARY_CODEC;
+            }
+        }
+        return JSON_CODEC;
+    }
+
+    /**
+     * 按数据的格式选择解码器，兼容切换编码前写入的数据
+     * @return 无法解码时返回null
+     */
+    private RedisData decode(byte[] bytes, Class<?> type, boolean logicExpire) {
+        for (CacheCodec codec : CODECS) {
+            if (codec.accepts(bytes)) {
+                return codec.decode(bytes, type, logicExpire);
+            }
+        }
+        return null;
+    }
+
+    private byte[] read(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private void write(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    /**
+     * 批量查询，逻辑过期，语义与queryWithLogicExpire相同：redis中没有的不是热点数据，不在结果中；
+     * 逻辑过期的先返回旧数据，获取到锁的在后台一次查询数据库重建
+     * @param dbFallback 根据id批量查询数据库，返回 id -> 数据，不存在的id不在结果中
+     * @return id -> 数据
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        LocalDateTime now = LocalDateTime.now();
+        // 0. 先查L1
+        SegmentedLruCache<Object> l1 = l1Caches.get(keyPrefix);
+        List<ID> remote = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            Object cached = l1 == null ? null : l1.get(keyPrefix + id);
+            if (cached instanceof RedisData) {
+                RedisData cachedData = (RedisData) cached;
+                if (cachedData.getExpireTime().isAfter(now) && type.isInstance(cachedData.getData())) {
+                    result.put(id, type.cast(cachedData.getData()));
+                    continue;
+                }
+            }
+            remote.add(id);
+        }
+        // 1. 一次MGET查询redis
+        long[] versions = l1Versions(l1, keyPrefix, remote);
+        List<byte[]> values = readAll(keyPrefix, remote);
+        List<ID> expired = new ArrayList<>();
+        List<ID> undecodable = new ArrayList<>();
+        for (int i = 0; i < remote.size(); i++) {
+            ID id = remote.get(i);
+            byte[] bytes = values.get(i);
+            if (bytes == null || bytes.length == 0) {
+                continue;
+            }
+            RedisData cached = decode(bytes, type, true);
+            if (cached == null) {
+                undecodable.add(id);
+                continue;
+            }
+            R r = type.cast(cached.getData());
+            if (r != null) {
+                result.put(id, r);
+            }
+            if (cached.getExpireTime().isAfter(now)) {
+                if (l1 != null) {
+                    l1.putIfVersion(keyPrefix + id, cached, bytes.length, versions[i]);
+                }
+            } else {
+                expired.add(id);
+            }
+        }
+        // 2. 类结构变化导致无法解码的，同步重建
+        if (!undecodable.isEmpty()) {
+            result.putAll(rebuildWithLogicExpire(keyPrefix, undecodable, dbFallback, time, unit));
+        }
+        // 3. 逻辑过期的，用管道批量获取锁，获取到的在后台重建
+        List<ID> locked = tryLockAll(keyPrefix, expired);
+        if (!locked.isEmpty()) {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    rebuildWithLogicExpire(keyPrefix, locked, dbFallback, time, unit);
+                } finally {
+                    List<String> lockKeys = new ArrayList<>(locked.size());
+                    for (ID id : locked) {
+                        lockKeys.add(LOCK_CACHE_KEY + keyPrefix + id);
+                    }
+                    stringRedisTemplate.delete(lockKeys);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 一次查询数据库，用管道写回redis，逻辑过期时间加随机抖动；数据库中已不存在的删除key，不再作为热点数据
+     */
+    private <R, ID> Map<ID, R> rebuildWithLogicExpire(String keyPrefix, List<ID> ids,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> loaded = dbFallback.apply(ids);
+        CacheCodec codec = codecOf(keyPrefix);
+        long ttlMillis = unit.toMillis(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                R r = loaded.get(id);
+                if (r == null) {
+                    connection.del(rawKey);
+                } else {
+                    LocalDateTime expireTime = LocalDateTime.now().plus(jitter(ttlMillis), ChronoUnit.MILLIS);
+                    connection.set(rawKey, codec.encode(r, expireTime));
+                }
+            }
+            return null;
+        });
+        for (ID id : ids) {
+            invalidate(keyPrefix + id);
+        }
+        return loaded;
+    }
+
+    private <ID> List<ID> tryLockAll(String keyPrefix, List<ID> ids) {
+        if (ids.isEmpty()) {
+            return ids;
+        }
+        byte[] lockValue = "1".getBytes(StandardCharsets.UTF_8);
+        List<Object> acquired = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                connection.set((LOCK_CACHE_KEY + keyPrefix + id).getBytes(StandardCharsets.UTF_8), lockValue,
+                        Expiration.seconds(LOCK_SHOP_TTL), RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<ID> locked = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (Boolean.TRUE.equals(acquired.get(i))) {
+                locked.add(ids.get(i));
+            }
+        }
+        return locked;
+    }
+
+    private <ID> List<byte[]> readAll(String keyPrefix, List<ID> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        byte[][] rawKeys = new byte[ids.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = (keyPrefix + ids.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+    }
+
+    /**
+     * 过期时间随机增加0~ttlJitterRatio倍
+     */
+    private long jitter(long millis) {
+        return millis + (long) (millis * ttlJitterRatio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 批量读取redis之前各key在L1中的失效版本号
+     */
+    private static <ID> long[] l1Versions(SegmentedLruCache<Object> l1, String keyPrefix, List<ID> ids) {
+        long[] versions = new long[ids.size()];
+        if (l1 != null) {
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = l1.version(keyPrefix + ids.get(i));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * 删除本节点L1中的key，并通知其他节点
+     */
+    private void invalidate(String key) {
+        SegmentedLruCache<Object> l1 = l1Of(key);
+        if (l1 == null) {
+            return;
+        }
+        l1.invalidate(key);
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL,
+                    nodeId + ":" + System.currentTimeMillis() + ":" + key);
+        } catch (Exception e) {
+            // 通知失败时其他节点的L1最多在存活时间后过期
+            log.warn("发布缓存失效消息失败: {}", key, e);
+        }
+    }
+
+    /**
+     * 收到其他节点的失效通知 nodeId:发布时间:key
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 3);
+        if (parts.length < 3 || nodeId.equals(parts[0])) {
+            return;
+        }
+        SegmentedLruCache<Object> l1 = l1Of(parts[2]);
+        if (l1 != null) {
+            l1.invalidate(parts[2]);
+        }
+        long lag = Math.max(0, System.currentTimeMillis() - Long.parseLong(parts[1]));
+        invalidations.increment();
+        invalidationLagMillis.add(lag);
+        maxInvalidationLagMillis.accumulateAndGet(lag, Math::max);
+    }
+
+    private SegmentedLruCache<Object> l1Of(String key) {
+        for (Map.Entry<String, SegmentedLruCache<Object>> entry : l1Caches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 缓存统计: L1各前缀的条数、估算字节数、命中率、淘汰数，合并加载的次数，以及失效通知的延迟
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        l1Caches.forEach((prefix, l1) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            long hits = l1.hits();
+            long total = hits + l1.misses();
+            item.put("size", l1.size());
+            item.put("weightBytes", l1.weight());
+            item.put("hits", hits);
+            item.put("misses", l1.misses());
+            item.put("hitRate", total == 0 ? 0 : Math.round(hits * 10000.0 / total) / 100.0);
+            item.put("evictions", l1.evictions());
+            stats.put(prefix, item);
+        });
+        stats.put("singleFlightWaits", singleFlightWaits.sum());
+        stats.put("singleFlightTimeouts", singleFlightTimeouts.sum());
+        long count = invalidations.sum();
+        stats.put("invalidations", count);
+        stats.put("avgInvalidationLagMillis", count == 0 ? 0 : invalidationLagMillis.sum() / count);
+        stats.put("maxInvalidationLagMillis", maxInvalidationLagMillis.get());
+        // 丢失失效通知时最多读到多旧的数据
+        stats.put("maxStalenessSeconds", l1Caches.isEmpty() ? 0 : l1TtlSeconds);
+        return stats;
+    }
+
     /**
      * 尝试锁
      *
@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的编码方式，CacheClient按key前缀选择写入时的编码，读取时按accepts选择解码器，
+ * 因此切换编码后旧格式的数据仍能读取，直到被重新写入。
+ */
+public interface CacheCodec {
+
+    /**
+     * @param value 缓存的对象
+     * @param expireTime 逻辑过期时间，没有逻辑过期时为null
+     */
+    byte[] encode(Object value, LocalDateTime expireTime);
+
+    /**
+     * 是否是本编码写入的数据
+     */
+    boolean accepts(byte[] bytes);
+
+    /**
+     * @param logicExpire 是否是带逻辑过期时间写入的数据
+     * @return data为type类型的对象，expireTime为逻辑过期时间；数据与type的结构不兼容时返回null
+     */
+    RedisData decode(byte[] bytes, Class<?> type, boolean logicExpire);
+}
@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * 哈希时间轮：按到期时间所在的tick把任务放进 tick % wheelSize 号桶，添加任务O(1)
+ * 工作线程每个tick处理一个桶，只触发已到期的任务，没到期的(后面几圈的)留在桶里。
+ * 任务只保存id和到期时间两个long，桶内用数组存储，百万级任务不产生大量小对象。
+ */
+@Slf4j
+public class HashedTimingWheel {
+
+    private final long tickMillis;
+    private final int mask;
+    private final Bucket[] buckets;
+    private final LongConsumer onExpire;
+    private final Thread worker;
+    private final AtomicLong pending = new AtomicLong();
+    private final long startMillis;
+    /**
+     * 工作线程已处理到的tick
+     */
+    private volatile long processedTick = -1;
+    private volatile boolean running = true;
+
+    /**
+     * @param tickMillis 每个tick的时长
+     * @param wheelSize 桶数，向上取整为2的幂
+     * @param onExpire 任务到期回调，在工作线程中执行
+     * @param name 工作线程名称
+     */
+    public HashedTimingWheel(long tickMillis, int wheelSize, LongConsumer onExpire, String name) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.onExpire = onExpire;
+        this.startMillis = System.currentTimeMillis();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 添加定时任务
+     * @param id 任务id，到期时传给回调
+     * @param deadlineMillis 到期时间
+     */
+    public void schedule(long id, long deadlineMillis) {
+        // 已经过去的tick不会再处理，放到下一个tick
+        long tick = Math.max((deadlineMillis - startMillis) / tickMillis, processedTick + 1);
+        buckets[(int) (tick & mask)].add(id, deadlineMillis);
+        pending.incrementAndGet();
+    }
+
+    /**
+     * 尚未触发的任务数
+     */
+    public long size() {
+        return pending.get();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long[] expired = new long[64];
+        while (running) {
+            long tick = processedTick + 1;
+            long tickEnd = startMillis + (tick + 1) * tickMillis;
+            long sleep = tickEnd - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // 先推进tick再处理，处理期间添加的任务会进入后面的桶
+            processedTick = tick;
+            expired = buckets[(int) (tick & mask)].expire(tickEnd, expired);
+            int count = (int) expired[0];
+            pending.addAndGet(-count);
+            for (int i = 1; i <= count; i++) {
+                try {
+                    onExpire.accept(expired[i]);
+                } catch (Exception e) {
+                    log.error("定时任务执行失败, id={}", expired[i], e);
+                }
+            }
+        }
+    }
+
+    private static class Bucket {
+        private long[] ids = new long[16];
+        private long[] deadlines = new long[16];
+        private int size;
+
+        synchronized void add(long id, long deadline) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+            }
+            ids[size] = id;
+            deadlines[size] = deadline;
+            size++;
+        }
+
+        /**
+         * 移除到期的任务
+         * @param out 复用的输出数组，out[0]为个数
+         * @return 输出数组，容量不够时重新分配
+         */
+        synchronized long[] expire(long now, long[] out) {
+            int count = 0;
+            int i = 0;
+            while (i < size) {
+                if (deadlines[i] < now) {
+                    if (count + 2 > out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    out[++count] = ids[i];
+                    // 用最后一个任务填补空位
+                    size--;
+                    ids[i] = ids[size];
+                    deadlines[i] = deadlines[size];
+                } else {
+                    i++;
+                }
+            }
+            out[0] = count;
+            return out;
+        }
+    }
+}
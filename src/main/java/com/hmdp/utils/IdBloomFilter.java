@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按long型id判断是否存在的布隆过滤器，返回false时一定不存在，返回true时可能存在
+ * 位数组为AtomicLongArray，多线程可以并发写入和查询。第i个哈希位置为 h1 + i * h2。
+ */
+public class IdBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+    private final LongAdder insertions = new LongAdder();
+
+    /**
+     * 按预计数量和误判率计算位数和哈希次数，位数不超过maxBits，超出时误判率相应升高
+     */
+    public static IdBloomFilter create(long expectedInsertions, double fpp, long maxBits) {
+        long n = Math.max(1, expectedInsertions);
+        long bitSize = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        bitSize = Math.max(64, Math.min(bitSize, maxBits));
+        int hashCount = (int) Math.max(1, Math.min(16, Math.round((double) bitSize / n * Math.log(2))));
+        return new IdBloomFilter(bitSize, hashCount);
+    }
+
+    public IdBloomFilter(long bitSize, int hashCount) {
+        this.bits = new AtomicLongArray((int) ((bitSize + 63) >>> 6));
+        this.bitSize = (long) bits.length() << 6;
+        this.hashCount = hashCount;
+    }
+
+    public void add(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1) | 1;
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(h1 + i * h2, bitSize);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            if ((bits.get(word) & mask) == 0) {
+                bits.accumulateAndGet(word, mask, (a, b) -> a | b);
+                changed = true;
+            }
+        }
+        if (changed) {
+            insertions.increment();
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(h1 + i * h2, bitSize);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * 写入的id数，已存在(或误判为已存在)的id重复写入不计数
+     */
+    public long insertions() {
+        return insertions.sum();
+    }
+
+    /**
+     * 按当前写入次数估算的误判率
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * insertions() / bitSize), hashCount);
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+        x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return x ^ (x >>> 33);
+    }
+}
@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * json编码，逻辑过期的数据保存为RedisData的json
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value, LocalDateTime expireTime) {
+        if (expireTime == null) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean accepts(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == '{';
+    }
+
+    @Override
+    public RedisData decode(byte[] bytes, Class<?> type, boolean logicExpire) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        if (!logicExpire) {
+            RedisData redisData = new RedisData();
+            redisData.setData(JSONUtil.toBean(json, type));
+            return redisData;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        return redisData;
+    }
+}
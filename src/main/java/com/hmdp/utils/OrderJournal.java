@@ -0,0 +1,186 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单通道的预写日志，通过MappedByteBuffer写入本地文件
+ * 记录按环形缓冲区的序号循环写入 slot = seq % slots，消费者订单落库后写入checkpoint，
+ * 重启时重放序号大于checkpoint的记录。多个请求线程的写入由后台线程一次force落盘(组提交)。
+ * 文件布局: [checkpoint 8字节][保留 56字节][记录 seq,id,userId,voucherId,slot,check 各8字节]...
+ */
+@Slf4j
+public class OrderJournal implements OrderRingBuffer.PublishHook, Closeable {
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 48;
+
+    private final Path file;
+    private final long slots;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long flushIntervalNanos;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * 开始的flush轮次，写入完成后读取，之后开始的轮次一定包含这次写入
+     */
+    private final AtomicLong flushStarted = new AtomicLong();
+    /**
+     * 等待落盘的最大轮次
+     */
+    private final AtomicLong flushRequested = new AtomicLong();
+    private volatile long flushCompleted;
+    private final Object flushMonitor = new Object();
+
+    /**
+     * @param file 日志文件，已存在时覆盖
+     * @param slots 记录槽位数，不能小于环形缓冲区容量加一批的订单数，保证未落库的记录不被覆盖
+     * @param flushIntervalMillis 没有等待落盘的写入时，定期force的间隔
+     */
+    public OrderJournal(Path file, long slots, long flushIntervalMillis) throws IOException {
+        this.file = file;
+        this.slots = slots;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + slots * RECORD_SIZE);
+        buffer.putLong(0, -1);
+        this.flusher = new Thread(this::flushLoop, "order-journal-" + file.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 在环形缓冲区发布订单前写入日志，不同序号写入不同位置，多线程并发写入互不影响
+     */
+    @Override
+    public void beforePublish(long seq, long id, long userId, long voucherId, int slot) {
+        int position = (int) (HEADER_SIZE + (seq % slots) * RECORD_SIZE);
+        buffer.putLong(position + 8, id);
+        buffer.putLong(position + 16, userId);
+        buffer.putLong(position + 24, voucherId);
+        buffer.putLong(position + 32, slot);
+        buffer.putLong(position + 40, check(seq, id, userId, voucherId, slot));
+        buffer.putLong(position, seq);
+    }
+
+    /**
+     * 等待当前线程之前的写入落盘，与同一时间的其他写入共用一次force
+     * @return false:等待超时
+     */
+    public boolean sync(long timeoutMillis) throws InterruptedException {
+        long target = flushStarted.get() + 1;
+        flushRequested.accumulateAndGet(target, Math::max);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+            while (flushCompleted < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(flushMonitor, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 订单落库后调用，序号不大于seq的记录重启时不再重放，只能由消费线程调用
+     */
+    public void checkpoint(long seq) {
+        buffer.putLong(0, seq);
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                synchronized (flushMonitor) {
+                    if (flushRequested.get() <= flushCompleted) {
+                        TimeUnit.NANOSECONDS.timedWait(flushMonitor, flushIntervalNanos);
+                    }
+                }
+                long round = flushStarted.incrementAndGet();
+                buffer.force();
+                synchronized (flushMonitor) {
+                    flushCompleted = round;
+                    flushMonitor.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("订单日志落盘失败: {}", file, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        flusher.interrupt();
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * 读取日志中未checkpoint的订单，按序号排序
+     */
+    public static List<VoucherOrder> replay(Path file) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long checkpoint = buffer.getLong(0);
+            long slots = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+            for (long index = 0; index < slots; index++) {
+                int position = (int) (HEADER_SIZE + index * RECORD_SIZE);
+                long seq = buffer.getLong(position);
+                long id = buffer.getLong(position + 8);
+                long userId = buffer.getLong(position + 16);
+                long voucherId = buffer.getLong(position + 24);
+                long orderSlot = buffer.getLong(position + 32);
+                // 序号与槽位对应且校验通过的才是完整写入的记录
+                if (seq > checkpoint && seq % slots == index
+                        && buffer.getLong(position + 40) == check(seq, id, userId, voucherId, orderSlot)) {
+                    records.add(new long[]{seq, id, userId, voucherId, orderSlot});
+                }
+            }
+        }
+        records.sort(Comparator.comparingLong(record -> record[0]));
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (long[] record : records) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(record[1]);
+            voucherOrder.setUserId(record[2]);
+            voucherOrder.setVoucherId(record[3]);
+            voucherOrder.setSlot((int) record[4]);
+            orders.add(voucherOrder);
+        }
+        return orders;
+    }
+
+    private static long check(long seq, long id, long userId, long voucherId, long slot) {
+        long h = seq * 0x9E3779B97F4A7C15L;
+        h = (h ^ id) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ userId) * 0x165667B19E3779F9L;
+        h = (h ^ voucherId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ slot) * 0xC2B2AE3D27D4EB4FL;
+        return h ^ (h >>> 31) ^ 0x6A09E667F3BCC909L;
+    }
+}
@@ -0,0 +1,315 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 秒杀订单的多生产者单消费者环形缓冲区
+ * 槽位在创建时分配好，订单只写入(id, userId, voucherId, slot)几个基本类型，入队不创建对象；
+ * 生产者CAS抢占序号，写完槽位后发布该序号，消费者按序号连续读取已发布的槽位。
+ * 缓冲区满时tryPublish直接返回-1，由调用方拒绝请求。
+ */
+public class OrderRingBuffer {
+
+    /**
+     * 消费者等待新订单的方式
+     */
+    public enum WaitStrategy {
+        /**
+         * 一直自旋，延迟最低，独占一个CPU
+         */
+        BUSY_SPIN,
+        /**
+         * 自旋一段时间后让出CPU
+         */
+        YIELDING,
+        /**
+         * 自旋、让出CPU后短暂睡眠，空闲时几乎不占CPU
+         */
+        SLEEPING,
+        /**
+         * 锁和条件变量，消费者等待时生产者才需要唤醒
+         */
+        BLOCKING
+    }
+
+    /**
+     * 槽位写入后、发布前的回调，可用于按序号持久化订单
+     */
+    public interface PublishHook {
+        void beforePublish(long seq, long id, long userId, long voucherId, int slot);
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int capacity;
+    private final int mask;
+    private final long[] ids;
+    private final long[] userIds;
+    private final long[] voucherIds;
+    private final int[] slots;
+    /**
+     * 每个槽位最近一次发布的序号，等于待读序号时表示该槽位可读
+     */
+    private final AtomicLongArray published;
+    /**
+     * 生产者已抢占的最大序号
+     */
+    private final AtomicLong cursor = new AtomicLong(-1);
+    /**
+     * 消费者已读取的最大序号，生产者据此判断是否已满
+     */
+    private final AtomicLong consumed = new AtomicLong(-1);
+    private final LongAdder rejected = new LongAdder();
+
+    private final WaitStrategy waitStrategy;
+    private final PublishHook publishHook;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean consumerWaiting;
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     * @param waitStrategy 消费者等待方式
+     */
+    public OrderRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, waitStrategy, null);
+    }
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     * @param waitStrategy 消费者等待方式
+     * @param publishHook 发布前回调，可为null
+     */
+    public OrderRingBuffer(int capacity, WaitStrategy waitStrategy, PublishHook publishHook) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.ids = new long[size];
+        this.userIds = new long[size];
+        this.voucherIds = new long[size];
+        this.slots = new int[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+        this.publishHook = publishHook;
+    }
+
+    /**
+     * 发布一个订单
+     * @return 订单的序号，-1表示缓冲区已满
+     */
+    public long tryPublish(long id, long userId, long voucherId, int slot) {
+        long seq = claim(1);
+        if (seq < 0) {
+            return -1;
+        }
+        write(seq, id, userId, voucherId, slot);
+        publish(seq);
+        return seq;
+    }
+
+    /**
+     * 一次抢占n个连续序号，发布同一用户的多个订单
+     * @return 最后一个订单的序号，-1表示缓冲区剩余空间不足，此时一个都不发布
+     */
+    public long tryPublishBatch(long[] ids, long userId, long[] voucherIds, int[] slots, int n) {
+        long last = claim(n);
+        if (last < 0) {
+            return -1;
+        }
+        long first = last - n + 1;
+        for (int i = 0; i < n; i++) {
+            write(first + i, ids[i], userId, voucherIds[i], slots[i]);
+        }
+        // 消费者按序号连续读取，按顺序发布
+        for (long seq = first; seq <= last; seq++) {
+            publish(seq);
+        }
+        return last;
+    }
+
+    /**
+     * CAS抢占n个序号
+     * @return 抢占到的最大序号，-1表示已满
+     */
+    private long claim(int n) {
+        while (true) {
+            long current = cursor.get();
+            long seq = current + n;
+            if (seq - capacity > consumed.get()) {
+                rejected.add(n);
+                return -1;
+            }
+            if (cursor.compareAndSet(current, seq)) {
+                return seq;
+            }
+        }
+    }
+
+    private void write(long seq, long id, long userId, long voucherId, int slot) {
+        int index = (int) seq & mask;
+        ids[index] = id;
+        userIds[index] = userId;
+        voucherIds[index] = voucherId;
+        slots[index] = slot;
+        if (publishHook != null) {
+            publishHook.beforePublish(seq, id, userId, voucherId, slot);
+        }
+    }
+
+    private void publish(long seq) {
+        int index = (int) seq & mask;
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            published.set(index, seq);
+            if (consumerWaiting) {
+                lock.lock();
+                try {
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } else {
+            published.lazySet(index, seq);
+        }
+    }
+
+    /**
+     * 读取已发布的订单，只能由唯一的消费者线程调用
+     * @param orders 复用的订单对象，读取的订单写入orders[offset]开始的位置
+     * @param max 最多读取的个数
+     * @return 读取的个数
+     */
+    public int drainTo(VoucherOrder[] orders, int offset, int max) {
+        long next = consumed.get() + 1;
+        int n = 0;
+        while (n < max) {
+            long seq = next + n;
+            int index = (int) seq & mask;
+            if (published.get(index) != seq) {
+                break;
+            }
+            VoucherOrder order = orders[offset + n];
+            order.setId(ids[index]);
+            order.setUserId(userIds[index]);
+            order.setVoucherId(voucherIds[index]);
+            order.setSlot(slots[index]);
+            n++;
+        }
+        if (n > 0) {
+            consumed.lazySet(next + n - 1);
+        }
+        return n;
+    }
+
+    /**
+     * 已发布未读取的订单中指定优惠券的用户，可由任意线程调用，结果是近似的快照，不包含正在写入的槽位
+     * @param result 用户id写入该集合
+     */
+    public void collectUsers(long voucherId, Collection<Long> result) {
+        long to = cursor.get();
+        for (long seq = consumed.get() + 1; seq <= to; seq++) {
+            int index = (int) seq & mask;
+            if (published.get(index) == seq && voucherIds[index] == voucherId) {
+                result.add(userIds[index]);
+            }
+        }
+    }
+
+    /**
+     * 等待有可读的订单，只能由唯一的消费者线程调用
+     * @param timeoutNanos 超时时间，小于0时一直等待
+     * @return false:超时
+     */
+    public boolean await(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int tries = 0;
+        while (!readable()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = timeoutNanos < 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    if (++tries > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case SLEEPING:
+                    if (++tries > 2 * SPIN_TRIES) {
+                        LockSupport.parkNanos(Math.min(remaining, SLEEP_NANOS));
+                    } else if (tries > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                default:
+                    blockingWait(remaining);
+            }
+        }
+        return true;
+    }
+
+    private void blockingWait(long remaining) throws InterruptedException {
+        lock.lock();
+        try {
+            consumerWaiting = true;
+            // 设置等待标记后再检查一次，避免错过标记之前的发布
+            if (!readable()) {
+                notEmpty.awaitNanos(remaining);
+            }
+        } finally {
+            consumerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    private boolean readable() {
+        long next = consumed.get() + 1;
+        return published.get((int) next & mask) == next;
+    }
+
+    /**
+     * 消费者已读取的最大序号，-1表示还没有读取
+     */
+    public long consumedSequence() {
+        return consumed.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 已抢占未读取的订单数，包含正在写入的槽位
+     */
+    public int size() {
+        return (int) (cursor.get() - consumed.get());
+    }
+
+    /**
+     * 因缓冲区满被拒绝的订单数
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+}
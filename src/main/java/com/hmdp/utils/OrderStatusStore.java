@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单异步创建结果
+ * 订单消费者写入终态(persisted/failed)到redis并广播，查询时先查本地再查redis，
+ * 都没有时按订单id中的时间戳判断是仍在排队还是已经过期。
+ */
+@Slf4j
+@Component
+public class OrderStatusStore implements MessageListener {
+
+    private static final int LOCAL_CACHE_SIZE = 100_000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 本地缓存最近的订单终态，LRU淘汰
+     */
+    private final Map<Long, OrderStatusDTO> localStatuses = Collections.synchronizedMap(
+            new LinkedHashMap<Long, OrderStatusDTO>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, OrderStatusDTO> eldest) {
+                    return size() > LOCAL_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * 长轮询等待中的请求
+     */
+    private final Map<Long, Queue<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    public OrderStatusStore(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 标记订单已创建
+     * @param orderIds 订单id
+     */
+    public void markPersisted(Collection<Long> orderIds) {
+        save(orderIds, OrderStatusDTO.PERSISTED, null);
+    }
+
+    /**
+     * 标记订单创建失败
+     * @param orderIds 订单id
+     * @param reason 失败原因
+     */
+    public void markFailed(Collection<Long> orderIds, String reason) {
+        save(orderIds, OrderStatusDTO.FAILED, reason);
+    }
+
+    private void save(Collection<Long> orderIds, String status, String reason) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        String value = reason == null ? status : status + ":" + reason;
+        for (Long orderId : orderIds) {
+            localStatuses.put(orderId, new OrderStatusDTO(orderId, status, reason));
+        }
+        try {
+            // 一批订单一次pipeline写入，一条消息广播
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                for (Long orderId : orderIds) {
+                    connection.setEx((SECKILL_ORDER_STATUS_KEY + orderId).getBytes(StandardCharsets.UTF_8),
+                            TimeUnit.MINUTES.toSeconds(SECKILL_ORDER_STATUS_TTL), bytes);
+                }
+                return null;
+            });
+            stringRedisTemplate.convertAndSend(SECKILL_ORDER_STATUS_CHANNEL,
+                    value + "|" + StrUtil.join(",", orderIds));
+        } catch (Exception e) {
+            log.warn("保存订单状态失败, status={}, size={}", value, orderIds.size(), e);
+        }
+        completeWaiters(orderIds);
+    }
+
+    /**
+     * 查询订单状态
+     * @param orderId 订单id
+     * @return 订单状态
+     */
+    public OrderStatusDTO get(Long orderId) {
+        OrderStatusDTO status = localStatuses.get(orderId);
+        if (status != null) {
+            return status;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value != null) {
+            status = parse(orderId, value);
+            localStatuses.put(orderId, status);
+            return status;
+        }
+        // 没有终态：订单id生成时间还在保留期内则仍在排队，否则视为不存在
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        long ageSeconds = nowSecond - RedisIdWorker.epochSecondOf(orderId);
+        if (ageSeconds >= 0 && ageSeconds < TimeUnit.MINUTES.toSeconds(SECKILL_ORDER_STATUS_TTL)) {
+            return new OrderStatusDTO(orderId, OrderStatusDTO.QUEUED, null);
+        }
+        return new OrderStatusDTO(orderId, OrderStatusDTO.UNKNOWN, null);
+    }
+
+    /**
+     * 长轮询：订单仍在排队时挂起请求，直到出现终态或超时
+     * @param orderId 订单id
+     * @param timeoutMillis 最长等待时间
+     * @return 异步结果
+     */
+    public DeferredResult<Result> await(Long orderId, long timeoutMillis) {
+        DeferredResult<Result> deferred = new DeferredResult<>(timeoutMillis);
+        OrderStatusDTO status = get(orderId);
+        if (!OrderStatusDTO.QUEUED.equals(status.getStatus()) || timeoutMillis <= 0) {
+            deferred.setResult(Result.ok(status));
+            return deferred;
+        }
+        Queue<DeferredResult<Result>> queue = waiters.computeIfAbsent(orderId, id -> new ConcurrentLinkedQueue<>());
+        queue.add(deferred);
+        deferred.onTimeout(() -> deferred.setResult(Result.ok(get(orderId))));
+        deferred.onCompletion(() -> {
+            queue.remove(deferred);
+            waiters.computeIfPresent(orderId, (id, q) -> q.isEmpty() ? null : q);
+        });
+        // 注册期间可能已经写入终态
+        status = get(orderId);
+        if (!OrderStatusDTO.QUEUED.equals(status.getStatus())) {
+            deferred.setResult(Result.ok(status));
+        }
+        return deferred;
+    }
+
+    private void completeWaiters(Collection<Long> orderIds) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        for (Long orderId : orderIds) {
+            Queue<DeferredResult<Result>> queue = waiters.remove(orderId);
+            if (queue == null) {
+                continue;
+            }
+            OrderStatusDTO status = get(orderId);
+            DeferredResult<Result> deferred;
+            while ((deferred = queue.poll()) != null) {
+                deferred.setResult(Result.ok(status));
+            }
+        }
+    }
+
+    private static OrderStatusDTO parse(Long orderId, String value) {
+        int index = value.indexOf(':');
+        if (index < 0) {
+            return new OrderStatusDTO(orderId, value, null);
+        }
+        return new OrderStatusDTO(orderId, value.substring(0, index), value.substring(index + 1));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 格式: status[:reason]|id,id,...
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf('|');
+        if (index < 0) {
+            return;
+        }
+        String value = body.substring(0, index);
+        List<Long> orderIds = new ArrayList<>();
+        for (String id : StrUtil.split(body.substring(index + 1), ',')) {
+            if (StrUtil.isNotBlank(id)) {
+                Long orderId = Long.valueOf(id);
+                orderIds.add(orderId);
+                localStatuses.put(orderId, parse(orderId, value));
+            }
+        }
+        completeWaiters(orderIds);
+    }
+}
@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_TIMEOUT_KEY;
+
+/**
+ * 未支付订单超时取消
+ * 订单落库后登记到redis的zset(score为到期时间)，同时放进本地时间轮按时触发；
+ * 触发时先ZREM认领，只有删除成功的节点执行取消，重复触发和多节点并发都只取消一次。
+ * 节点宕机或重启后本地时间轮丢失的订单，由定期扫描zset中超时过久的订单兜底。
+ */
+@Slf4j
+@Component
+public class OrderTimeoutScheduler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 未支付订单的超时时间(分钟)，0表示不取消
+     */
+    @Value("${hmdp.seckill.order-timeout.minutes:0}")
+    private long timeoutMinutes;
+
+    @Value("${hmdp.seckill.order-timeout.tick-millis:1000}")
+    private long tickMillis;
+
+    @Value("${hmdp.seckill.order-timeout.wheel-size:4096}")
+    private int wheelSize;
+
+    /**
+     * 超时超过该时长(秒)仍在zset中的订单，视为时间轮已丢失，由扫描任务取消
+     */
+    @Value("${hmdp.seckill.order-timeout.sweep-grace-seconds:60}")
+    private long sweepGraceSeconds;
+
+    private HashedTimingWheel timingWheel;
+
+    @PostConstruct
+    private void init() {
+        if (timeoutMinutes > 0) {
+            timingWheel = new HashedTimingWheel(tickMillis, wheelSize, this::expire, "order-timeout-wheel");
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+    }
+
+    /**
+     * 登记新落库的订单，超时未支付时取消
+     * 到期时间按订单id中的下单时间计算，重复投递或日志重放再次登记时不会推迟
+     */
+    public void schedule(Collection<Long> orderIds) {
+        if (timingWheel == null || orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                conn.zAdd(SECKILL_ORDER_TIMEOUT_KEY, deadlineOf(orderId), orderId.toString());
+            }
+            return null;
+        });
+        for (Long orderId : orderIds) {
+            timingWheel.schedule(orderId, deadlineOf(orderId));
+        }
+    }
+
+    /**
+     * id中的秒数是按UTC换算的本地时间，先还原为时间戳
+     */
+    private long deadlineOf(long orderId) {
+        long createMillis = LocalDateTime.ofEpochSecond(RedisIdWorker.epochSecondOf(orderId), 0, ZoneOffset.UTC)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return createMillis + TimeUnit.MINUTES.toMillis(timeoutMinutes);
+    }
+
+    /**
+     * 兜底扫描：取消超时过久的订单
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order-timeout.sweep-interval-millis:30000}")
+    public void sweep() {
+        if (timingWheel == null) {
+            return;
+        }
+        try {
+            long max = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(sweepGraceSeconds);
+            while (true) {
+                Set<String> orderIds = stringRedisTemplate.opsForZSet()
+                        .rangeByScore(SECKILL_ORDER_TIMEOUT_KEY, 0, max, 0, 1000);
+                if (orderIds == null || orderIds.isEmpty()) {
+                    return;
+                }
+                for (String orderId : orderIds) {
+                    expire(Long.parseLong(orderId));
+                }
+                if (orderIds.size() < 1000) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("扫描超时订单失败", e);
+        }
+    }
+
+    public long pending() {
+        return timingWheel == null ? 0 : timingWheel.size();
+    }
+
+    private void expire(long orderId) {
+        // 认领，删除失败说明已被其他节点或重复的任务处理；已支付的订单由取消时的状态条件排除
+        Long removed = stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_TIMEOUT_KEY, String.valueOf(orderId));
+        if (removed == null || removed == 0) {
+            return;
+        }
+        try {
+            voucherOrderService.cancelVoucherOrder(orderId);
+        } catch (Exception e) {
+            // 取消失败，一分钟后由扫描任务重试
+            log.error("取消超时订单失败, orderId={}", orderId, e);
+            stringRedisTemplate.opsForZSet().add(SECKILL_ORDER_TIMEOUT_KEY, String.valueOf(orderId),
+                    System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(sweepGraceSeconds) + TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+}
@@ -1,14 +1,36 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
 
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -17,28 +39,311 @@ public class RedisIdWorker {
     序列号
      */
     private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 号段大小，大于0时每次从redis租用一段序列号在本地分配
+     */
+    @Value("${hmdp.id.segment-size:0}")
+    private long segmentSize;
+
+    /**
+     * 当前号段用掉该比例后异步预取下一个号段
+     */
+    @Value("${hmdp.id.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
+    /**
+     * id生成方式: redis(redis自增序列号) / snowflake(本地生成，只在启动和心跳时访问redis)
+     */
+    @Value("${hmdp.id.mode:redis}")
+    private String mode;
+
+    /**
+     * snowflake模式下worker id租约的时长(秒)，心跳每隔1/6续约一次
+     */
+    @Value("${hmdp.id.worker-lease-seconds:60}")
+    private long workerLeaseSeconds;
+
+    /**
+     * 各业务当天的号段，key为redis自增key
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    /**
+     * 当前节点标识，作为worker id租约的值
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    /**
+     * snowflake模式下的本地生成器，其他模式为null
+     */
+    private volatile SnowflakeIdWorker snowflake;
+    private volatile int workerId = -1;
+    /**
+     * 最近一次获取或续约成功的租约的开始时间(System.nanoTime，取发送命令前的时间，不晚于redis中租约的开始时间)
+     */
+    private volatile long leaseStartNanos;
+    /**
+     * 本地时区相对UTC的秒数，nextId把本地时间按UTC换算，snowflake模式下直接加上偏移，心跳时刷新
+     */
+    private volatile long zoneOffsetSeconds = currentZoneOffset();
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        if ("snowflake".equalsIgnoreCase(mode)) {
+            snowflake = leaseWorker(0);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SnowflakeIdWorker worker = snowflake;
+        if (worker == null) {
+            return;
+        }
+        try {
+            saveLastTimestamp(workerId, worker);
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), nodeId);
+        } catch (Exception e) {
+            log.warn("释放worker id失败: {}", workerId, e);
+        }
+    }
+
     /**
      * 开始时间戳
      * @param keyPrefix 业务名称前缀
      * @return
      */
     public long nextId(String keyPrefix) {
+        SnowflakeIdWorker worker = snowflake;
+        if (worker != null) {
+            if (leaseExpired()) {
+                worker = renewExpiredWorker(worker);
+            }
+            // snowflake模式下所有业务共用一个序列，不需要区分前缀和日期
+            return worker.nextId(System.currentTimeMillis() / 1000 + zoneOffsetSeconds - BEGIN_TIMESTAMP);
+        }
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         //2.生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        String key = "icr:" + keyPrefix + ":" + date;
+        long count = segmentSize > 0
+                ? segmentBuffer(keyPrefix, key).next()
+                : stringRedisTemplate.opsForValue().increment(key);
         //3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
-}
\ No newline at end of file
+    /**
+     * 解析id中的时间戳
+     * @param id nextId生成的id
+     * @return 生成id时的秒数，与nextId一样按UTC换算本地时间
+     */
+    public static long epochSecondOf(long id) {
+        return (id >>> COUNT_BITS) + BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 续约worker id租约，并记录已用到的秒数；租约被其他节点占用时换一个worker id
+     * redis不可用时在租约有效期内继续在本地生成，恢复后由续约脚本重新占用；超过租约时长仍未续约成功时，
+     * 该worker id可能已被其他节点占用，nextId不再使用它生成id
+     */
+    @Scheduled(fixedDelayString = "#{${hmdp.id.worker-lease-seconds:60} * 1000 / 6}")
+    public synchronized void heartbeat() {
+        SnowflakeIdWorker worker = snowflake;
+        if (worker == null) {
+            return;
+        }
+        zoneOffsetSeconds = currentZoneOffset();
+        long ahead = worker.lastTimestamp() - (System.currentTimeMillis() / 1000 + zoneOffsetSeconds - BEGIN_TIMESTAMP);
+        if (ahead > 1) {
+            log.warn("时钟回拨或序列号耗尽，id时间戳领先当前时间 {} 秒", ahead);
+        }
+        try {
+            long begin = System.nanoTime();
+            Long renewed = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    nodeId, String.valueOf(workerLeaseSeconds));
+            if (renewed == null || renewed == 0) {
+                log.error("worker id {} 的租约已被其他节点占用，重新获取", workerId);
+                snowflake = leaseWorker(worker.lastTimestamp() + 1);
+                return;
+            }
+            leaseStartNanos = begin;
+            saveLastTimestamp(workerId, worker);
+        } catch (Exception e) {
+            log.warn("worker id续约失败: {}", workerId, e);
+        }
+    }
+
+    private boolean leaseExpired() {
+        return System.nanoTime() - leaseStartNanos >= TimeUnit.SECONDS.toNanos(workerLeaseSeconds);
+    }
+
+    /**
+     * 租约过期后重新获取一个worker id，redis仍不可用时抛出异常，不生成id
+     */
+    private synchronized SnowflakeIdWorker renewExpiredWorker(SnowflakeIdWorker worker) {
+        if (snowflake != worker || !leaseExpired()) {
+            // 其他线程或心跳已经续约
+            return snowflake;
+        }
+        log.error("worker id {} 的租约已超过{}秒未续约，重新获取", workerId, workerLeaseSeconds);
+        snowflake = leaseWorker(worker.lastTimestamp() + 1);
+        return snowflake;
+    }
+
+    /**
+     * 从随机位置开始依次尝试SET NX占用一个worker id
+     * @param minTimestamp 新生成器的最小起始秒数
+     */
+    private SnowflakeIdWorker leaseWorker(long minTimestamp) {
+        int start = ThreadLocalRandom.current().nextInt(SnowflakeIdWorker.MAX_WORKERS);
+        for (int i = 0; i < SnowflakeIdWorker.MAX_WORKERS; i++) {
+            int id = (start + i) % SnowflakeIdWorker.MAX_WORKERS;
+            long begin = System.nanoTime();
+            Boolean leased = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, nodeId, workerLeaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(leased)) {
+                // 从该worker id上次用到的秒数之后开始，避免时钟回拨期间重启的节点生成重复的id
+                String last = stringRedisTemplate.opsForValue().get(ID_WORKER_LAST_KEY + id);
+                long now = System.currentTimeMillis() / 1000 + zoneOffsetSeconds - BEGIN_TIMESTAMP;
+                long startTimestamp = Math.max(now, minTimestamp);
+                if (last != null) {
+                    startTimestamp = Math.max(startTimestamp, Long.parseLong(last) + 1);
+                }
+                workerId = id;
+                leaseStartNanos = begin;
+                log.info("获取worker id {}", id);
+                return new SnowflakeIdWorker(id, startTimestamp);
+            }
+        }
+        throw new IllegalStateException("没有可用的worker id");
+    }
+
+    private void saveLastTimestamp(int id, SnowflakeIdWorker worker) {
+        stringRedisTemplate.opsForValue().set(ID_WORKER_LAST_KEY + id, String.valueOf(worker.lastTimestamp()), 1, TimeUnit.DAYS);
+    }
+
+    private static long currentZoneOffset() {
+        return ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds();
+    }
+
+    private SegmentBuffer segmentBuffer(String keyPrefix, String key) {
+        SegmentBuffer buffer = segmentBuffers.get(key);
+        if (buffer != null) {
+            return buffer;
+        }
+        synchronized (segmentBuffers) {
+            buffer = segmentBuffers.get(key);
+            if (buffer == null) {
+                // 换日，丢弃前一天的号段
+                segmentBuffers.keySet().removeIf(old -> old.startsWith("icr:" + keyPrefix + ":"));
+                buffer = new SegmentBuffer(key);
+                segmentBuffers.put(key, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * 号段：[cursor, max]内的序列号在本地分配，分配到prefetchAt时预取下一段
+     */
+    private static class Segment {
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        Segment(long start, long max, long prefetchAt) {
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 双号段缓冲：当前号段用完前异步租好下一段，避免分配线程等待redis
+     */
+    private class SegmentBuffer {
+        private final String key;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        SegmentBuffer(String key) {
+            this.key = key;
+            this.current = lease();
+        }
+
+        long next() {
+            while (true) {
+                Segment segment = current;
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+                    if (count == segment.prefetchAt) {
+                        prefetch();
+                    }
+                    return count;
+                }
+                // 当前号段已用完，切换到下一段
+                synchronized (this) {
+                    if (current == segment) {
+                        current = takeNext();
+                    }
+                }
+            }
+        }
+
+        private synchronized void prefetch() {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(this::lease, SEGMENT_PREFETCH_EXECUTOR);
+            }
+        }
+
+        private Segment takeNext() {
+            CompletableFuture<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    return future.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败，同步重新租用: {}", key, e);
+                }
+            }
+            return lease();
+        }
+
+        /**
+         * INCRBY一次租用segmentSize个序列号，redis计数器只增不减，保证本节点的号段单调递增
+         */
+        private Segment lease() {
+            Long max = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+            long start = max - segmentSize + 1;
+            long prefetchAt = start + Math.min(segmentSize - 1, (long) (segmentSize * prefetchRatio));
+            return new Segment(start, max, prefetchAt);
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RATE_NODES_KEY;
+
+/**
+ * 秒杀请求的准入控制，在执行秒杀脚本之前按优惠券和用户两个维度的令牌桶限流
+ * 令牌桶都在本地计算；优惠券的全局速率由各节点平分，节点数通过redis心跳定期同步。
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 当前节点标识
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    /**
+     * 每张优惠券全集群每秒放行的请求数，0表示不限
+     */
+    @Value("${hmdp.seckill.rate-limit.voucher-qps:0}")
+    private double voucherQps;
+
+    /**
+     * 每个用户每秒放行的请求数，0表示不限
+     */
+    @Value("${hmdp.seckill.rate-limit.user-qps:0}")
+    private double userQps;
+
+    /**
+     * 每个用户的令牌桶容量
+     */
+    @Value("${hmdp.seckill.rate-limit.user-burst:2}")
+    private double userBurst;
+
+    /**
+     * 同步节点数的间隔(毫秒)，超过3个间隔没有心跳的节点视为下线
+     */
+    @Value("${hmdp.seckill.rate-limit.sync-interval-millis:1000}")
+    private long syncIntervalMillis;
+
+    /**
+     * 当前存活的节点数
+     */
+    private volatile int activeNodes = 1;
+
+    private final Map<Long, TokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+    private final Map<Long, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    private final Map<Long, LongAdder> voucherRejected = new ConcurrentHashMap<>();
+    private final LongAdder userRejected = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 尝试获取秒杀许可
+     * @param voucherId 优惠券id
+     * @param userId 用户id
+     * @return true:放行，false:限流
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        if (userQps > 0) {
+            TokenBucket bucket = userBuckets.computeIfAbsent(userId, id -> new TokenBucket(userQps, userBurst));
+            if (!bucket.tryAcquire()) {
+                userRejected.increment();
+                return false;
+            }
+        }
+        if (voucherQps > 0) {
+            TokenBucket bucket = voucherBuckets.computeIfAbsent(voucherId, id -> {
+                double rate = voucherQps / activeNodes;
+                return new TokenBucket(rate, Math.max(1, rate));
+            });
+            if (!bucket.tryAcquire()) {
+                voucherRejected.computeIfAbsent(voucherId, id -> new LongAdder()).increment();
+                return false;
+            }
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * 心跳并同步存活节点数，按节点数重新分配每张优惠券的本地速率，清理空闲的用户和优惠券令牌桶
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.rate-limit.sync-interval-millis:1000}")
+    public void sync() {
+        if (voucherQps > 0) {
+            try {
+                long now = System.currentTimeMillis();
+                stringRedisTemplate.opsForZSet().add(SECKILL_RATE_NODES_KEY, nodeId, now);
+                stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_RATE_NODES_KEY, 0, now - 3 * syncIntervalMillis);
+                Long nodes = stringRedisTemplate.opsForZSet().zCard(SECKILL_RATE_NODES_KEY);
+                int count = nodes == null || nodes < 1 ? 1 : nodes.intValue();
+                if (count != activeNodes) {
+                    activeNodes = count;
+                    double rate = voucherQps / count;
+                    voucherBuckets.values().forEach(bucket -> bucket.setRate(rate, Math.max(1, rate)));
+                }
+            } catch (Exception e) {
+                // redis不可用时沿用上次的节点数
+                log.warn("同步限流节点数失败", e);
+            }
+        }
+        long idleNanos = TimeUnit.SECONDS.toNanos(10);
+        long now = System.nanoTime();
+        userBuckets.values().removeIf(bucket -> now - bucket.lastAccessNanos > idleNanos);
+        // 空闲的桶早已补满，重新创建时同样是满的，清理后不影响限流；拒绝数随桶一起清理，统计只保留活跃的优惠券
+        voucherBuckets.values().removeIf(bucket -> now - bucket.lastAccessNanos > idleNanos);
+        voucherRejected.keySet().retainAll(voucherBuckets.keySet());
+    }
+
+    /**
+     * 限流统计
+     * @return 放行数、按用户和按优惠券的拒绝数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("activeNodes", activeNodes);
+        stats.put("admitted", admitted.sum());
+        stats.put("userRejected", userRejected.sum());
+        Map<Long, Long> rejected = new LinkedHashMap<>();
+        voucherRejected.forEach((voucherId, count) -> rejected.put(voucherId, count.sum()));
+        stats.put("voucherRejected", rejected);
+        return stats;
+    }
+
+    /**
+     * 令牌桶：按时间差惰性补充令牌
+     */
+    private static class TokenBucket {
+        private double rate;
+        private double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+        private volatile long lastAccessNanos;
+
+        TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillNanos = System.nanoTime();
+            this.lastAccessNanos = lastRefillNanos;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * rate / 1e9);
+            lastRefillNanos = now;
+            lastAccessNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized void setRate(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = Math.min(tokens, capacity);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券售罄标记的本地缓存
+ * 脚本返回库存不足后在本地标记，并通过redis发布订阅通知其他节点，
+ * 之后该优惠券的秒杀请求直接返回，不再访问redis。补充库存时清除标记。
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache implements MessageListener {
+
+    private static final String SOLD_OUT = "set:";
+    private static final String RESET = "reset:";
+
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    public SeckillSoldOutCache(StringRedisTemplate stringRedisTemplate,
+                               RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 优惠券是否已售罄
+     * @param voucherId 优惠券id
+     * @return true:本地已标记售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄并通知其他节点，本地已标记时不重复通知
+     * @param voucherId 优惠券id
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOutVouchers.add(voucherId)) {
+            publish(SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除售罄标记，并通知其他节点
+     * @param voucherId 优惠券id
+     */
+    public void reset(Long voucherId) {
+        soldOutVouchers.remove(voucherId);
+        publish(RESET + voucherId);
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            // 通知失败只影响其他节点的短路优化，不影响正确性
+            log.warn("发布售罄消息失败: {}", message, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                soldOutVouchers.add(Long.valueOf(body.substring(SOLD_OUT.length())));
+            } else if (body.startsWith(RESET)) {
+                soldOutVouchers.remove(Long.valueOf(body.substring(RESET.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无效的售罄消息: {}", body);
+        }
+    }
+}
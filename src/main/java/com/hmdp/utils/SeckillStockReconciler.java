@@ -0,0 +1,471 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账：定期比对redis与数据库中未结束秒杀券的库存
+ * 正常情况下 redis库存 + 已下单用户数 = 数据库库存 + 订单数 = 初始库存，
+ * 消费者丢单、进程带着未消费的队列退出、手工改库存都会破坏这个等式。
+ * 数据库为准，同一差异连续两次对账都存在才修复，排除队列中尚未落库的订单造成的瞬时差异；
+ * 移除丢单用户前还会排除仍在订单队列中的用户(memory队列下只能看到当前节点的通道和日志)。
+ * 大券的一次对账可能持续数分钟，在独立线程中执行，不占用限流心跳、worker id续约等共用的定时任务线程。
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    private static final int PAGE_SIZE = 500;
+    private static final int SCAN_BATCH = 1000;
+    /**
+     * 每张券每次对账最多记录、修复的用户数
+     */
+    private static final int MAX_SUSPECTS = 10000;
+    /**
+     * 已取消的订单已归还库存，不计入订单数
+     */
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Value("${hmdp.seckill.reconcile.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.reconcile.interval-millis:300000}")
+    private long intervalMillis;
+
+    /**
+     * false只输出对账报告，true按数据库修复redis
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    @Value("${hmdp.seckill.buyer-tracking:set}")
+    private String buyerTracking;
+
+    @Value("${hmdp.seckill.buyer-retain-hours:24}")
+    private long retainHours;
+
+    /**
+     * 上次对账的总量差异，key为优惠券id
+     */
+    private final Map<Long, Long> lastDeltas = new HashMap<>();
+
+    /**
+     * 上次对账时redis中已下单但数据库中没有订单的用户，key为优惠券id
+     */
+    private final Map<Long, Set<Long>> lastOrphans = new HashMap<>();
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "seckill-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcile, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 按主键分页扫描仍保留redis数据的秒杀券，逐张对账
+     */
+    public void reconcile() {
+        long lastId = 0;
+        Set<Long> seen = new HashSet<>();
+        try {
+            while (true) {
+                List<SeckillVoucher> page = seckillVoucherService.query()
+                        .gt("end_time", LocalDateTime.now().minusHours(retainHours))
+                        .gt("voucher_id", lastId)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + PAGE_SIZE)
+                        .list();
+                for (SeckillVoucher seckillVoucher : page) {
+                    seen.add(seckillVoucher.getVoucherId());
+                    if (!isQuota(seckillVoucher)) {
+                        reconcile(seckillVoucher.getVoucherId());
+                    }
+                }
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getVoucherId();
+            }
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        }
+        lastDeltas.keySet().retainAll(seen);
+        lastOrphans.keySet().retainAll(seen);
+    }
+
+    /**
+     * 一人多单或按天限购的券用hash记录购买数量，不按下单用户对账
+     */
+    private static boolean isQuota(SeckillVoucher seckillVoucher) {
+        Integer userLimit = seckillVoucher.getUserLimit();
+        boolean quota = (userLimit != null && userLimit != 1) || Boolean.TRUE.equals(seckillVoucher.getLimitDaily());
+        if (quota) {
+            log.debug("限购券不参与对账, voucherId={}", seckillVoucher.getVoucherId());
+        }
+        return quota;
+    }
+
+    private void reconcile(Long voucherId) {
+        // 多个节点同时对账时，每张券只由一个节点处理
+        RLock lock = redissonClient.getLock("lock:reconcile:" + voucherId);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_STRIPES_KEY + voucherId);
+            int stripes = value == null ? 1 : Integer.parseInt(value);
+            Long redisStock = redisStock(voucherId, stripes);
+            if (redisStock == null) {
+                // 库存没有加载到redis，不参与对账
+                return;
+            }
+            boolean bitmap = "bitmap".equalsIgnoreCase(buyerTracking);
+            // 1.按主键分页扫描订单，找出redis中没有记录的下单用户
+            long dbOrders = 0;
+            long missingCount = 0;
+            List<Long> missingBuyers = new ArrayList<>();
+            long lastId = 0;
+            while (true) {
+                List<VoucherOrder> orders = voucherOrderService.query()
+                        .select("id", "user_id")
+                        .eq("voucher_id", voucherId)
+                        .ne("status", ORDER_STATUS_CANCELLED)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + SCAN_BATCH)
+                        .list();
+                dbOrders += orders.size();
+                List<Long> missing = missingBuyers(voucherId, stripes, bitmap, orders);
+                missingCount += missing.size();
+                missingBuyers.addAll(missing.subList(0, Math.min(missing.size(), MAX_SUSPECTS - missingBuyers.size())));
+                if (orders.size() < SCAN_BATCH) {
+                    break;
+                }
+                lastId = orders.get(orders.size() - 1).getId();
+            }
+            // 2.SSCAN已下单用户，找出数据库中没有订单的用户；bitmap模式只能统计数量
+            long redisBuyers = 0;
+            Set<Long> orphans = new HashSet<>();
+            if (bitmap) {
+                for (String key : scanKeys(bitmapPattern(voucherId, stripes))) {
+                    Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                            connection.bitCount(key.getBytes(StandardCharsets.UTF_8)));
+                    redisBuyers += count == null ? 0 : count;
+                }
+            } else {
+                for (int i = 0; i < stripes; i++) {
+                    String key = stripes > 1 ? stripeKey(SECKILL_ORDER_KEY, voucherId, i) : SECKILL_ORDER_KEY + voucherId;
+                    redisBuyers += scanOrphans(voucherId, key, orphans);
+                }
+            }
+            // 3.数据库库存在订单扫描之后读取，与订单数尽量接近同一时刻
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            if (seckillVoucher == null) {
+                return;
+            }
+            long dbStock = seckillVoucher.getStock();
+            long delta = (dbStock + dbOrders) - (redisStock + redisBuyers);
+            if (delta != 0 || missingCount > 0 || !orphans.isEmpty()) {
+                log.warn("秒杀库存对账不一致 voucherId={} redisStock={} redisBuyers={} dbStock={} dbOrders={} delta={} missingBuyers={} orphans={}",
+                        voucherId, redisStock, redisBuyers, dbStock, dbOrders, delta, missingCount, orphans.size());
+            }
+            // 连续两次都出现的差异才认为是真实漂移
+            long observed = delta;
+            Long lastDelta = lastDeltas.put(voucherId, observed);
+            Set<Long> lastOrphanSet = lastOrphans.put(voucherId, orphans);
+            if (!repair) {
+                return;
+            }
+            // 数据库有订单而redis没有记录的用户，补记录，防止重复下单；补记录后redis总量随之增加
+            for (Long userId : missingBuyers) {
+                addBuyer(voucherId, userId, stripes, bitmap);
+                delta--;
+            }
+            // 连续两次都只在redis中存在的下单用户视为丢单，移除记录并归还库存，redis总量不变
+            if (lastOrphanSet != null && !orphans.isEmpty()) {
+                for (Long userId : confirmOrphans(voucherId, orphans, lastOrphanSet)) {
+                    removeBuyer(voucherId, userId, stripes);
+                }
+            }
+            if (delta != 0 && lastDelta != null && lastDelta == observed) {
+                repairStock(voucherId, stripes, redisStock, delta);
+                lastDeltas.remove(voucherId);
+            }
+        } catch (Exception e) {
+            log.error("秒杀券对账失败 voucherId={}", voucherId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * redis中的库存，分桶时为各桶之和
+     * @return 库存未加载时返回null
+     */
+    private Long redisStock(Long voucherId, int stripes) {
+        if (stripes <= 1) {
+            String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            return stock == null ? null : Long.parseLong(stock);
+        }
+        List<String> keys = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            keys.add(stripeKey(SECKILL_STOCK_KEY, voucherId, i));
+        }
+        long total = 0;
+        boolean found = false;
+        // 分桶的key在不同slot，逐个读取
+        for (String key : keys) {
+            String stock = stringRedisTemplate.opsForValue().get(key);
+            if (stock != null) {
+                total += Long.parseLong(stock);
+                found = true;
+            }
+        }
+        return found ? total : null;
+    }
+
+    /**
+     * 一页订单中redis没有下单记录的用户，用管道批量判断
+     */
+    private List<Long> missingBuyers(Long voucherId, int stripes, boolean bitmap, List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder order : orders) {
+                Long userId = order.getUserId();
+                if (bitmap) {
+                    connection.getBit(bytes(buyerKey(voucherId, userId, stripes, true)), offsetOf(userId));
+                } else {
+                    connection.sIsMember(bytes(buyerKey(voucherId, userId, stripes, false)), bytes(userId.toString()));
+                }
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < orders.size(); i++) {
+            if (!Boolean.TRUE.equals(results.get(i))) {
+                missing.add(orders.get(i).getUserId());
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * SSCAN一个用户集合，每批到数据库查询这些用户是否有订单
+     * @return 集合中的用户数
+     */
+    private long scanOrphans(Long voucherId, String key, Set<Long> orphans) {
+        long count = 0;
+        List<Long> batch = new ArrayList<>(SCAN_BATCH);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(key, ScanOptions.scanOptions().count(SCAN_BATCH).build())) {
+            while (cursor.hasNext()) {
+                batch.add(Long.valueOf(cursor.next()));
+                count++;
+                if (batch.size() == SCAN_BATCH) {
+                    collectOrphans(voucherId, batch, orphans);
+                    batch.clear();
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("扫描已下单用户失败: " + key, e);
+        }
+        collectOrphans(voucherId, batch, orphans);
+        return count;
+    }
+
+    private void collectOrphans(Long voucherId, List<Long> userIds, Set<Long> orphans) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        Set<Long> ordered = voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .ne("status", ORDER_STATUS_CANCELLED)
+                .in("user_id", userIds)
+                .list()
+                .stream()
+                .map(VoucherOrder::getUserId)
+                .collect(Collectors.toSet());
+        for (Long userId : userIds) {
+            if (!ordered.contains(userId) && orphans.size() < MAX_SUSPECTS) {
+                orphans.add(userId);
+            }
+        }
+    }
+
+    /**
+     * 排除仍在订单队列中的用户(长时间积压或等待重放的订单还没有落库，不是丢单)，
+     * 先取队列快照再到数据库复查，快照之后出队的订单在复查时能查到
+     */
+    private Set<Long> confirmOrphans(Long voucherId, Set<Long> orphans, Set<Long> lastOrphanSet) {
+        Set<Long> queued = voucherOrderService.queryQueuedBuyers(voucherId);
+        List<Long> candidates = new ArrayList<>();
+        int skipped = 0;
+        for (Long userId : orphans) {
+            if (!lastOrphanSet.contains(userId)) {
+                continue;
+            }
+            if (queued.contains(userId)) {
+                skipped++;
+            } else {
+                candidates.add(userId);
+            }
+        }
+        if (skipped > 0) {
+            log.info("对账跳过仍在订单队列中的用户 voucherId={} users={}", voucherId, skipped);
+        }
+        Set<Long> confirmed = new HashSet<>();
+        for (int i = 0; i < candidates.size(); i += SCAN_BATCH) {
+            collectOrphans(voucherId, candidates.subList(i, Math.min(candidates.size(), i + SCAN_BATCH)), confirmed);
+        }
+        return confirmed;
+    }
+
+    private void addBuyer(Long voucherId, Long userId, int stripes, boolean bitmap) {
+        String key = buyerKey(voucherId, userId, stripes, bitmap);
+        if (bitmap) {
+            stringRedisTemplate.opsForValue().setBit(key, offsetOf(userId), true);
+        } else {
+            stringRedisTemplate.opsForSet().add(key, userId.toString());
+        }
+        log.warn("对账补充已下单用户 voucherId={} userId={}", voucherId, userId);
+    }
+
+    private void removeBuyer(Long voucherId, Long userId, int stripes) {
+        String key = buyerKey(voucherId, userId, stripes, false);
+        Long removed = stringRedisTemplate.opsForSet().remove(key, userId.toString());
+        if (removed != null && removed > 0) {
+            // 库存还给用户所属的桶
+            String stockKey = stripes > 1
+                    ? stripeKey(SECKILL_STOCK_KEY, voucherId, Math.floorMod(Long.hashCode(userId), stripes))
+                    : SECKILL_STOCK_KEY + voucherId;
+            stringRedisTemplate.opsForValue().increment(stockKey);
+            clearSoldOut(voucherId);
+            log.warn("对账移除丢单用户并归还库存 voucherId={} userId={}", voucherId, userId);
+        }
+    }
+
+    /**
+     * 按数据库修正redis库存，分桶时修正到第0个桶
+     */
+    private void repairStock(Long voucherId, int stripes, long redisStock, long delta) {
+        if (redisStock + delta < 0) {
+            log.error("对账修正后redis库存为负，需人工处理 voucherId={} redisStock={} delta={}", voucherId, redisStock, delta);
+            return;
+        }
+        String stockKey = stripes > 1 ? stripeKey(SECKILL_STOCK_KEY, voucherId, 0) : SECKILL_STOCK_KEY + voucherId;
+        stringRedisTemplate.opsForValue().increment(stockKey, delta);
+        if (delta > 0) {
+            clearSoldOut(voucherId);
+        }
+        log.warn("对账修正redis库存 voucherId={} delta={}", voucherId, delta);
+    }
+
+    private void clearSoldOut(Long voucherId) {
+        stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucherId);
+        seckillSoldOutCache.reset(voucherId);
+    }
+
+    private List<String> scanKeys(String pattern) {
+        List<String> keys = new ArrayList<>();
+        stringRedisTemplate.execute((RedisConnection connection) -> {
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().match(pattern).count(SCAN_BATCH).build())) {
+                while (cursor.hasNext()) {
+                    keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException("扫描key失败: " + pattern, e);
+            }
+            return null;
+        });
+        return keys;
+    }
+
+    /**
+     * 与秒杀时使用的已下单用户key保持一致
+     */
+    private static String buyerKey(Long voucherId, Long userId, int stripes, boolean bitmap) {
+        if (stripes > 1) {
+            int home = Math.floorMod(Long.hashCode(userId), stripes);
+            return bitmap
+                    ? stripeKey(SECKILL_BUYER_KEY, voucherId, home) + ":" + (userId >> SECKILL_BUYER_SHARD_BITS)
+                    : stripeKey(SECKILL_ORDER_KEY, voucherId, home);
+        }
+        return bitmap
+                ? SECKILL_BUYER_KEY + voucherId + ":" + (userId >> SECKILL_BUYER_SHARD_BITS)
+                : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    private static String bitmapPattern(Long voucherId, int stripes) {
+        return stripes > 1 ? SECKILL_BUYER_KEY + "{" + voucherId + ":*}:*" : SECKILL_BUYER_KEY + voucherId + ":*";
+    }
+
+    private static long offsetOf(Long userId) {
+        return userId & ((1L << SECKILL_BUYER_SHARD_BITS) - 1);
+    }
+
+    private static String stripeKey(String prefix, Long voucherId, int stripe) {
+        return prefix + "{" + voucherId + ":" + stripe + "}";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
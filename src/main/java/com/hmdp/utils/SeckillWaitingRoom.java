@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.WaitingTicketDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀排队：用户先用INCR领取号码，再轮询自己的位置，号码进入放行窗口后才能秒杀
+ * 放行窗口从秒杀开始时的burst个号码起，按每秒rate个匀速增长，
+ * 把开抢瞬间的请求摊平成订单消费者能够承受的稳定流量。
+ * 排队参数保存在 seckill:room:voucherId，秒杀脚本用同样的公式判断号码是否已放行。
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom implements MessageListener {
+
+    /**
+     * 本地缓存的优惠券个数上限和存活时间，存活时间兜底丢失的开启通知
+     */
+    private static final long ROOM_CACHE_SIZE = 10_000L;
+    private static final long ROOM_CACHE_TTL_MILLIS = 60_000L;
+    /**
+     * 没有开启排队的标记
+     */
+    private static final long[] NO_ROOM = new long[0];
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 新建秒杀券时是否开启排队
+     */
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 每秒放行的号码数
+     */
+    @Value("${hmdp.seckill.waiting-room.admit-rate:200}")
+    private long admitRate;
+
+    /**
+     * 秒杀开始时直接放行的号码数
+     */
+    @Value("${hmdp.seckill.waiting-room.admit-burst:500}")
+    private long admitBurst;
+
+    /**
+     * 各优惠券的排队参数 {begin, rate, burst}，创建后不再变化；没有开启排队的也缓存(NO_ROOM)，
+     * 分桶秒杀每个请求都要判断，不缓存时每次都要访问redis。开启排队时通过发布订阅清除各节点的缓存
+     */
+    private final SegmentedLruCache<long[]> rooms = new SegmentedLruCache<>(ROOM_CACHE_SIZE, ROOM_CACHE_TTL_MILLIS, 16);
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_ROOM_CHANNEL));
+    }
+
+    /**
+     * 新建秒杀券时按配置开启排队
+     * @param beginMillis 秒杀开始时间，放行窗口从此时开始增长
+     * @param expireAt 排队数据的过期时间点(毫秒)，0表示不过期
+     */
+    public void open(Long voucherId, long beginMillis, long expireAt) {
+        if (!enabled) {
+            return;
+        }
+        Map<String, String> room = new HashMap<>(4);
+        room.put("begin", String.valueOf(beginMillis));
+        room.put("rate", String.valueOf(admitRate));
+        room.put("burst", String.valueOf(admitBurst));
+        String key = SECKILL_ROOM_KEY + voucherId;
+        stringRedisTemplate.opsForHash().putAll(key, room);
+        if (expireAt > 0) {
+            stringRedisTemplate.expireAt(key, new Date(expireAt));
+        }
+        rooms.invalidate(voucherId.toString());
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_ROOM_CHANNEL, voucherId.toString());
+        } catch (Exception e) {
+            // 其他节点缓存的"未开启排队"在存活时间后过期
+            log.warn("发布排队开启消息失败: {}", voucherId, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        rooms.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 领取排队号码，同一用户重复领取返回原来的号码
+     */
+    public WaitingTicketDTO takeTicket(Long voucherId, Long userId) {
+        long[] room = room(voucherId);
+        if (room == null) {
+            return new WaitingTicketDTO(0L, 0L, 0L, 0L);
+        }
+        String ticketKey = SECKILL_TICKET_KEY + voucherId;
+        Object ticket = stringRedisTemplate.opsForHash().get(ticketKey, userId.toString());
+        if (ticket == null) {
+            String seqKey = SECKILL_TICKET_SEQ_KEY + voucherId;
+            Long seq = stringRedisTemplate.opsForValue().increment(seqKey);
+            // 并发领取时只有一个号码生效，浪费的号码相当于放弃排队的人
+            stringRedisTemplate.opsForHash().putIfAbsent(ticketKey, userId.toString(), String.valueOf(seq));
+            if (seq != null && seq == 1) {
+                // 第一个号码，排队数据与排队参数一起过期
+                Long ttl = stringRedisTemplate.getExpire(SECKILL_ROOM_KEY + voucherId);
+                if (ttl != null && ttl > 0) {
+                    stringRedisTemplate.expire(seqKey, ttl, TimeUnit.SECONDS);
+                    stringRedisTemplate.expire(ticketKey, ttl, TimeUnit.SECONDS);
+                }
+            }
+            ticket = stringRedisTemplate.opsForHash().get(ticketKey, userId.toString());
+        }
+        return position(room, Long.parseLong(ticket.toString()));
+    }
+
+    /**
+     * 查询用户的排队位置，没有领取号码时返回null
+     */
+    public WaitingTicketDTO position(Long voucherId, Long userId) {
+        long[] room = room(voucherId);
+        if (room == null) {
+            return new WaitingTicketDTO(0L, 0L, 0L, 0L);
+        }
+        Object ticket = stringRedisTemplate.opsForHash().get(SECKILL_TICKET_KEY + voucherId, userId.toString());
+        return ticket == null ? null : position(room, Long.parseLong(ticket.toString()));
+    }
+
+    /**
+     * 用户的号码是否已放行，分桶秒杀的脚本不能访问排队数据，在调用脚本前判断
+     * @return null:没有领取号码 true:已放行 false:还在排队
+     */
+    public Boolean isAdmitted(Long voucherId, Long userId) {
+        WaitingTicketDTO position = position(voucherId, userId);
+        return position == null ? null : position.getAhead() == 0;
+    }
+
+    private WaitingTicketDTO position(long[] room, long ticket) {
+        long admitted = admitted(room, System.currentTimeMillis());
+        long ahead = Math.max(0, ticket - admitted);
+        long waitMillis = room[1] > 0 ? ahead * 1000 / room[1] : 0;
+        // 秒杀尚未开始时还要等到开始
+        waitMillis += Math.max(0, room[0] - System.currentTimeMillis());
+        return new WaitingTicketDTO(ticket, admitted, ahead, waitMillis);
+    }
+
+    /**
+     * 已放行的号码，与seckill.lua中的计算一致
+     */
+    private static long admitted(long[] room, long now) {
+        return room[2] + Math.max(0, now - room[0]) * room[1] / 1000;
+    }
+
+    private long[] room(Long voucherId) {
+        String key = voucherId.toString();
+        long[] room = rooms.get(key);
+        if (room != null) {
+            return room == NO_ROOM ? null : room;
+        }
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_ROOM_KEY + voucherId, Arrays.asList("begin", "rate", "burst"));
+        if (values.get(0) == null) {
+            // 没有开启排队，之后开启时由open()的通知清除
+            rooms.put(key, NO_ROOM, 1);
+            return null;
+        }
+        room = new long[]{Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString()),
+                Long.parseLong(values.get(2).toString())};
+        rooms.put(key, room, 1);
+        return room;
+    }
+}
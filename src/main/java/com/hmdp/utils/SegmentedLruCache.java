@@ -0,0 +1,271 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按权重(估算字节数)限制容量的分段LRU本地缓存
+ * 新写入的key先进入试用段，再次命中后晋升到保护段；淘汰时先淘汰试用段，
+ * 只访问一次的冷key(如扫描)不会把反复命中的热key挤出去。
+ * 按key哈希分成多个分片，每个分片各自加锁，容量平分。
+ * 从远端读取后回填时用putIfVersion，读取期间key被失效过则放弃回填，避免把失效前读到的旧值写回。
+ */
+public class SegmentedLruCache<V> {
+
+    /**
+     * 保护段占分片容量的比例
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+    /**
+     * 失效版本号按key哈希分条的条数，同一条内其他key的失效也会让回填放弃，只多一次未命中
+     */
+    private static final int VERSION_STRIPES = 4096;
+
+    private final Shard<V>[] shards;
+    private final int mask;
+    private final long ttlMillis;
+    /**
+     * 失效版本号，invalidate时在分片锁内递增
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxWeight 所有分片的总权重上限
+     * @param ttlMillis 写入后的最长存活时间，兜底丢失的失效通知
+     * @param shardCount 分片数，向上取整为2的幂
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentedLruCache(long maxWeight, long ttlMillis, int shardCount) {
+        int size = 1;
+        while (size < shardCount) {
+            size <<= 1;
+        }
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard<>(Math.max(1, maxWeight / size));
+        }
+        this.mask = size - 1;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return 缓存的值，不存在或已超过存活时间时返回null
+     */
+    public V get(String key) {
+        V value = shard(key).get(key, System.currentTimeMillis() - ttlMillis);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * @param weight 值的权重，一般为序列化后的字节数
+     */
+    public void put(String key, V value, int weight) {
+        evictions.add(shard(key).put(key, value, Math.max(1, weight), System.currentTimeMillis()));
+    }
+
+    /**
+     * 从远端读取之前调用，回填时传给putIfVersion
+     */
+    public long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * 取得version之后key没有被失效过才写入
+     * @return 是否写入
+     */
+    public boolean putIfVersion(String key, V value, int weight, long version) {
+        Shard<V> shard = shard(key);
+        synchronized (shard) {
+            if (versions.get(stripe(key)) != version) {
+                return false;
+            }
+            evictions.add(shard.put(key, value, Math.max(1, weight), System.currentTimeMillis()));
+            return true;
+        }
+    }
+
+    public void invalidate(String key) {
+        Shard<V> shard = shard(key);
+        synchronized (shard) {
+            versions.incrementAndGet(stripe(key));
+            shard.remove(key);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long size() {
+        long size = 0;
+        for (Shard<V> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Shard<V> shard : shards) {
+            weight += shard.weight();
+        }
+        return weight;
+    }
+
+    private Shard<V> shard(String key) {
+        int h = key.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final int weight;
+        private final long loadedAt;
+        private boolean protectedSegment;
+
+        Entry(V value, int weight, long loadedAt) {
+            this.value = value;
+            this.weight = weight;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static class Shard<V> {
+        private final long maxWeight;
+        private final long maxProtectedWeight;
+        // accessOrder=true，迭代顺序即从最久未访问到最近访问
+        private final LinkedHashMap<String, Entry<V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry<V>> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationWeight;
+        private long protectedWeight;
+
+        Shard(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = (long) (maxWeight * PROTECTED_RATIO);
+        }
+
+        synchronized V get(String key, long minLoadedAt) {
+            Entry<V> entry = protectedEntries.get(key);
+            if (entry == null) {
+                entry = probation.get(key);
+                if (entry == null) {
+                    return null;
+                }
+            }
+            if (entry.loadedAt < minLoadedAt) {
+                remove(key);
+                return null;
+            }
+            if (!entry.protectedSegment) {
+                promote(key, entry);
+            }
+            return entry.value;
+        }
+
+        /**
+         * @return 淘汰的个数
+         */
+        synchronized int put(String key, V value, int weight, long now) {
+            remove(key);
+            if (weight > maxWeight) {
+                return 0;
+            }
+            probation.put(key, new Entry<>(value, weight, now));
+            probationWeight += weight;
+            int evicted = 0;
+            while (probationWeight + protectedWeight > maxWeight) {
+                Map<String, Entry<V>> victims = probation.isEmpty() ? protectedEntries : probation;
+                Iterator<Map.Entry<String, Entry<V>>> it = victims.entrySet().iterator();
+                Entry<V> victim = it.next().getValue();
+                it.remove();
+                subtract(victim);
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void remove(String key) {
+            Entry<V> entry = probation.remove(key);
+            if (entry == null) {
+                entry = protectedEntries.remove(key);
+            }
+            if (entry != null) {
+                subtract(entry);
+            }
+        }
+
+        synchronized long size() {
+            return probation.size() + protectedEntries.size();
+        }
+
+        synchronized long weight() {
+            return probationWeight + protectedWeight;
+        }
+
+        /**
+         * 试用段的key再次命中，移入保护段；保护段超出容量时，最久未访问的降回试用段
+         */
+        private void promote(String key, Entry<V> entry) {
+            probation.remove(key);
+            probationWeight -= entry.weight;
+            entry.protectedSegment = true;
+            protectedEntries.put(key, entry);
+            protectedWeight += entry.weight;
+            if (protectedWeight <= maxProtectedWeight) {
+                return;
+            }
+            List<Map.Entry<String, Entry<V>>> demoted = new ArrayList<>();
+            Iterator<Map.Entry<String, Entry<V>>> it = protectedEntries.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && it.hasNext()) {
+                Map.Entry<String, Entry<V>> eldest = it.next();
+                if (eldest.getValue() == entry) {
+                    continue;
+                }
+                it.remove();
+                protectedWeight -= eldest.getValue().weight;
+                demoted.add(eldest);
+            }
+            for (Map.Entry<String, Entry<V>> e : demoted) {
+                e.getValue().protectedSegment = false;
+                probation.put(e.getKey(), e.getValue());
+                probationWeight += e.getValue().weight;
+            }
+        }
+
+        private void subtract(Entry<V> entry) {
+            if (entry.protectedSegment) {
+                protectedWeight -= entry.weight;
+            } else {
+                probationWeight -= entry.weight;
+            }
+        }
+    }
+}
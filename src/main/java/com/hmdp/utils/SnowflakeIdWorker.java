@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地生成id，不访问redis，与RedisIdWorker的id布局兼容:
+ * [高32位: 秒级时间戳 - BEGIN_TIMESTAMP][1位标志][9位worker id][22位序列号]
+ * 标志位为1，redis每天的自增序列号小于2^31时不会与之重复；高32位相同，两种id混在一起仍按时间排序。
+ * 秒数和序列号合在一个long里CAS自增，序列号用完时自然进位到下一秒；
+ * 时钟回拨时继续沿用已经用到的秒数，只要worker id不同就不会重复。
+ */
+public class SnowflakeIdWorker {
+
+    public static final int WORKER_BITS = 9;
+    public static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final int SEQUENCE_BITS = 22;
+    private static final int COUNT_BITS = 32;
+    private static final long SNOWFLAKE_FLAG = 1L << (COUNT_BITS - 1);
+
+    private final long workerBits;
+    /**
+     * (秒数 << SEQUENCE_BITS) | 序列号，秒数是相对BEGIN_TIMESTAMP的秒数
+     */
+    private final AtomicLong state;
+
+    /**
+     * @param workerId 集群内唯一的worker id
+     * @param startTimestamp 起始秒数(相对BEGIN_TIMESTAMP)，不能小于同一worker id上次用到的秒数
+     */
+    public SnowflakeIdWorker(int workerId, long startTimestamp) {
+        if (workerId < 0 || workerId >= MAX_WORKERS) {
+            throw new IllegalArgumentException("worker id 超出范围: " + workerId);
+        }
+        this.workerBits = SNOWFLAKE_FLAG | (long) workerId << SEQUENCE_BITS;
+        this.state = new AtomicLong(startTimestamp << SEQUENCE_BITS);
+    }
+
+    /**
+     * @param timestamp 当前秒数(相对BEGIN_TIMESTAMP)
+     */
+    public long nextId(long timestamp) {
+        long next;
+        while (true) {
+            long current = state.get();
+            // 时钟前进时从新的一秒的0号开始，否则(同一秒或时钟回拨)在已用到的位置上加一
+            next = timestamp > current >>> SEQUENCE_BITS ? timestamp << SEQUENCE_BITS : current + 1;
+            if (state.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        return (next >>> SEQUENCE_BITS) << COUNT_BITS | workerBits | (next & ((1L << SEQUENCE_BITS) - 1));
+    }
+
+    /**
+     * 已经用到的秒数(相对BEGIN_TIMESTAMP)，时钟回拨或一秒内序列号用完时会超过当前时间
+     */
+    public long lastTimestamp() {
+        return state.get() >>> SEQUENCE_BITS;
+    }
+}
@@ -1,23 +1,119 @@
 -- 1.参数列表
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+-- 订单id
+local orderId = ARGV[3]
+-- 订单消息队列key，为空时不投递，由调用方放入JVM内阻塞队列
+local streamKey = ARGV[4]
+-- 已下单用户的记录方式: set / bitmap
+local buyerMode = ARGV[5]
+-- 已下单用户记录的过期时间点(秒)，0表示不过期
+local buyerExpireAt = tonumber(ARGV[6] or '0')
+-- 当前时间(毫秒)
+local now = tonumber(ARGV[7] or '0')
+-- 每个用户可购买的数量
+local userLimit = tonumber(ARGV[8] or '1')
+-- 按天限购时为当天的天数(自1970-01-01)，为空时限购针对整个秒杀
+local day = ARGV[9] or ''
+-- 限购计数的过期时间点(秒)，0表示不过期
+local quotaExpireAt = tonumber(ARGV[10] or '0')
 
 -- 库存key
 local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
+-- 时间窗口key
+local windowKey = 'seckill:window:' .. voucherId
+-- 排队参数和用户的排队号码，未开启排队时不存在
+local roomKey = 'seckill:room:' .. voucherId
+local ticketKey = 'seckill:ticket:' .. voucherId
+-- bitmap模式按用户id分段，每段2^20位(128KB)，offset为段内位置
+local offset = 0
+if buyerMode == 'bitmap' then
+    local uid = tonumber(userId)
+    orderKey = 'seckill:buyer:' .. voucherId .. ':' .. math.floor(uid / 1048576)
+    offset = uid % 1048576
+end
+-- 一人多单或按天限购时，用hash记录每个用户的购买数量 seckill:quota:voucherId[:day]
+local quotaKey = nil
+if userLimit ~= 1 or day ~= '' then
+    quotaKey = 'seckill:quota:' .. voucherId
+    if day ~= '' then
+        quotaKey = quotaKey .. ':' .. day
+    end
+end
+-- 用户的第几单，与用户id、优惠券id一起唯一确定订单；按天限购时为 天数*1000+当天第几单
+local slot = 1
 
 -- 脚本业务
-if tonumber(redis.call('get', stockKey)) <= 0 then
+-- 判断秒杀是否开始、结束
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if window[1] and now < tonumber(window[1]) then
+    -- 秒杀尚未开始
+    return {3, 0}
+end
+if window[2] and tonumber(window[2]) > 0 and now > tonumber(window[2]) then
+    -- 秒杀已经结束
+    return {4, 0}
+end
+if tonumber(redis.call('get', stockKey) or '0') <= 0 then
     -- 库存不足
-    return 1
-end
--- 判断用户是否下单
-if redis.call('sismember', orderKey, userId) == 1 then
-    -- 已经下单
-    return 2
-end
--- 扣减库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 添加用户到已下单集合 sadd orderKey userId
-redis.call('sadd', orderKey, userId)
-return 0
\ No newline at end of file
+    return {1, 0}
+end
+-- 开启排队时，只有号码进入放行窗口的用户可以秒杀，窗口从 burst 起每秒增长 rate 个号码
+local room = redis.call('hmget', roomKey, 'begin', 'rate', 'burst')
+if room[1] then
+    local ticket = redis.call('hget', ticketKey, userId)
+    if not ticket then
+        -- 没有领取排队号码
+        return {6, 0}
+    end
+    local admitted = tonumber(room[3]) + math.floor(math.max(0, now - tonumber(room[1])) * tonumber(room[2]) / 1000)
+    if tonumber(ticket) > admitted then
+        -- 还在排队
+        return {7, 0}
+    end
+end
+if quotaKey then
+    -- 判断用户是否已买满
+    local bought = tonumber(redis.call('hget', quotaKey, userId) or '0')
+    if bought >= userLimit then
+        return {2, 0}
+    end
+    redis.call('incrby', stockKey, -1)
+    -- 记录用户购买数量 hincrby quotaKey userId 1
+    slot = redis.call('hincrby', quotaKey, userId, 1)
+    if day ~= '' then
+        slot = tonumber(day) * 1000 + slot
+    end
+    if quotaExpireAt > 0 and redis.call('ttl', quotaKey) == -1 then
+        redis.call('expireat', quotaKey, quotaExpireAt)
+    end
+else
+    -- 判断用户是否下单
+    if buyerMode == 'bitmap' then
+        if redis.call('getbit', orderKey, offset) == 1 then
+            -- 已经下单
+            return {2, 0}
+        end
+    elseif redis.call('sismember', orderKey, userId) == 1 then
+        -- 已经下单
+        return {2, 0}
+    end
+    -- 扣减库存 incrby stockKey -1
+    redis.call('incrby', stockKey, -1)
+    -- 记录用户已下单 sadd orderKey userId / setbit orderKey offset 1
+    if buyerMode == 'bitmap' then
+        redis.call('setbit', orderKey, offset, 1)
+    else
+        redis.call('sadd', orderKey, userId)
+    end
+    -- 秒杀结束后回收已下单用户记录
+    if buyerExpireAt > 0 and redis.call('ttl', orderKey) == -1 then
+        redis.call('expireat', orderKey, buyerExpireAt)
+    end
+end
+-- 发送订单到消息队列 xadd stream.orders * userId userId voucherId voucherId id orderId slot slot
+if streamKey ~= nil and streamKey ~= '' then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'slot', slot)
+end
+return {0, slot}
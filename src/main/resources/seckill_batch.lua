@@ -0,0 +1,143 @@
+-- 一个用户一次秒杀多张优惠券(未分桶)，每张券的判断与seckill.lua一致
+-- 1.参数列表
+local userId = ARGV[1]
+-- 订单消息队列key，为空时不投递，由调用方放入JVM内环形缓冲区
+local streamKey = ARGV[2]
+-- 已下单用户的记录方式: set / bitmap
+local buyerMode = ARGV[3]
+-- 当前时间(毫秒)
+local now = tonumber(ARGV[4])
+-- 1: 全部成功或全部失败; 0: 能抢到几张算几张
+local allOrNothing = ARGV[5] == '1'
+local count = tonumber(ARGV[6])
+-- 之后每张券6个参数: voucherId, orderId, buyerExpireAt, userLimit, day, quotaExpireAt
+local FIELDS = 6
+
+local uid = tonumber(userId)
+local offset = uid % 1048576
+
+local function voucherOf(i)
+    local base = 6 + (i - 1) * FIELDS
+    local v = {
+        id = ARGV[base + 1],
+        orderId = ARGV[base + 2],
+        buyerExpireAt = tonumber(ARGV[base + 3]),
+        userLimit = tonumber(ARGV[base + 4]),
+        day = ARGV[base + 5],
+        quotaExpireAt = tonumber(ARGV[base + 6])
+    }
+    v.stockKey = 'seckill:stock:' .. v.id
+    if v.userLimit ~= 1 or v.day ~= '' then
+        v.quotaKey = 'seckill:quota:' .. v.id
+        if v.day ~= '' then
+            v.quotaKey = v.quotaKey .. ':' .. v.day
+        end
+    elseif buyerMode == 'bitmap' then
+        v.orderKey = 'seckill:buyer:' .. v.id .. ':' .. math.floor(uid / 1048576)
+    else
+        v.orderKey = 'seckill:order:' .. v.id
+    end
+    return v
+end
+
+-- 判断用户能否秒杀该券，返回码与seckill.lua相同
+local function check(v)
+    local window = redis.call('hmget', 'seckill:window:' .. v.id, 'begin', 'end')
+    if window[1] and now < tonumber(window[1]) then
+        return 3
+    end
+    if window[2] and tonumber(window[2]) > 0 and now > tonumber(window[2]) then
+        return 4
+    end
+    if tonumber(redis.call('get', v.stockKey) or '0') <= 0 then
+        return 1
+    end
+    local room = redis.call('hmget', 'seckill:room:' .. v.id, 'begin', 'rate', 'burst')
+    if room[1] then
+        local ticket = redis.call('hget', 'seckill:ticket:' .. v.id, userId)
+        if not ticket then
+            return 6
+        end
+        local admitted = tonumber(room[3]) + math.floor(math.max(0, now - tonumber(room[1])) * tonumber(room[2]) / 1000)
+        if tonumber(ticket) > admitted then
+            return 7
+        end
+    end
+    if v.quotaKey then
+        if tonumber(redis.call('hget', v.quotaKey, userId) or '0') >= v.userLimit then
+            return 2
+        end
+    elseif buyerMode == 'bitmap' then
+        if redis.call('getbit', v.orderKey, offset) == 1 then
+            return 2
+        end
+    elseif redis.call('sismember', v.orderKey, userId) == 1 then
+        return 2
+    end
+    return 0
+end
+
+-- 扣减库存、记录下单，返回用户的第几单
+local function apply(v)
+    local slot = 1
+    redis.call('incrby', v.stockKey, -1)
+    if v.quotaKey then
+        slot = redis.call('hincrby', v.quotaKey, userId, 1)
+        if v.day ~= '' then
+            slot = tonumber(v.day) * 1000 + slot
+        end
+        if v.quotaExpireAt > 0 and redis.call('ttl', v.quotaKey) == -1 then
+            redis.call('expireat', v.quotaKey, v.quotaExpireAt)
+        end
+    else
+        if buyerMode == 'bitmap' then
+            redis.call('setbit', v.orderKey, offset, 1)
+        else
+            redis.call('sadd', v.orderKey, userId)
+        end
+        if v.buyerExpireAt > 0 and redis.call('ttl', v.orderKey) == -1 then
+            redis.call('expireat', v.orderKey, v.buyerExpireAt)
+        end
+    end
+    if streamKey ~= '' then
+        redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', v.id, 'id', v.orderId, 'slot', slot)
+    end
+    return slot
+end
+
+-- 2.脚本业务，返回 {code1, slot1, code2, slot2, ...}
+local vouchers = {}
+for i = 1, count do
+    vouchers[i] = voucherOf(i)
+end
+local result = {}
+if allOrNothing then
+    -- 先全部判断，有一张不行就都不扣减；8: 本券可以秒杀，但整单中有其他券失败
+    local failed = false
+    for i = 1, count do
+        local code = check(vouchers[i])
+        result[2 * i - 1] = code
+        result[2 * i] = 0
+        if code ~= 0 then
+            failed = true
+        end
+    end
+    if failed then
+        for i = 1, count do
+            if result[2 * i - 1] == 0 then
+                result[2 * i - 1] = 8
+            end
+        end
+        return result
+    end
+    for i = 1, count do
+        result[2 * i] = apply(vouchers[i])
+    end
+    return result
+end
+for i = 1, count do
+    local code = check(vouchers[i])
+    result[2 * i - 1] = code
+    result[2 * i] = code == 0 and apply(vouchers[i]) or 0
+end
+return result
@@ -0,0 +1,78 @@
+-- 分桶库存秒杀脚本，一次只操作同一个桶(同一hash tag，同一slot)的key
+-- KEYS[1]: 桶库存key seckill:stock:{voucherId:i}
+-- KEYS[2]: 桶已下单用户记录 seckill:order:{voucherId:i} 或 bitmap分段 seckill:buyer:{voucherId:i}:n，
+--          限购模式下为购买数量 seckill:quota:{voucherId:i}[:day]
+-- KEYS[3]: 桶时间窗口 seckill:window:{voucherId:i}
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local windowKey = KEYS[3]
+-- 1.参数列表
+local userId = ARGV[1]
+-- claim: 用户所属的桶，负责一人一单判断; take: 兄弟桶，只扣减库存
+local mode = ARGV[2]
+-- 已下单用户的记录方式: set / bitmap / quota，bitmap模式下ARGV[4]为段内offset
+local buyerMode = ARGV[3]
+local offset = tonumber(ARGV[4] or '0')
+-- 已下单用户记录的过期时间点(秒)，0表示不过期
+local buyerExpireAt = tonumber(ARGV[5] or '0')
+-- 当前时间(毫秒)
+local now = tonumber(ARGV[6] or '0')
+-- 限购模式下每个用户可购买的数量，按天限购时ARGV[8]为天数
+local userLimit = tonumber(ARGV[7] or '1')
+local day = ARGV[8] or ''
+-- 用户的第几单
+local slot = 1
+
+if mode == 'take' then
+    if tonumber(redis.call('get', stockKey) or '0') <= 0 then
+        -- 库存不足
+        return {1, 0}
+    end
+    redis.call('incrby', stockKey, -1)
+    return {0, 0}
+end
+
+-- 判断秒杀是否开始、结束
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if window[1] and now < tonumber(window[1]) then
+    -- 秒杀尚未开始
+    return {3, 0}
+end
+if window[2] and tonumber(window[2]) > 0 and now > tonumber(window[2]) then
+    -- 秒杀已经结束
+    return {4, 0}
+end
+-- 判断用户是否下单
+if buyerMode == 'quota' then
+    if tonumber(redis.call('hget', orderKey, userId) or '0') >= userLimit then
+        return {2, 0}
+    end
+    -- 占位：购买数量加一，桶内库存不足时由调用方去兄弟桶扣减，失败再减回
+    slot = redis.call('hincrby', orderKey, userId, 1)
+    if day ~= '' then
+        slot = tonumber(day) * 1000 + slot
+    end
+elseif buyerMode == 'bitmap' then
+    if redis.call('getbit', orderKey, offset) == 1 then
+        return {2, 0}
+    end
+    -- 占位：记录用户已下单，桶内库存不足时由调用方去兄弟桶扣减，失败再清除
+    redis.call('setbit', orderKey, offset, 1)
+else
+    if redis.call('sismember', orderKey, userId) == 1 then
+        -- 已经下单
+        return {2, 0}
+    end
+    -- 占位：添加用户到已下单集合，桶内库存不足时由调用方去兄弟桶扣减，失败再移除
+    redis.call('sadd', orderKey, userId)
+end
+if buyerExpireAt > 0 and redis.call('ttl', orderKey) == -1 then
+    redis.call('expireat', orderKey, buyerExpireAt)
+end
+if tonumber(redis.call('get', stockKey) or '0') <= 0 then
+    -- 本桶库存不足
+    return {5, slot}
+end
+-- 扣减库存
+redis.call('incrby', stockKey, -1)
+return {0, slot}
@@ -0,0 +1,14 @@
+-- 续约或重新获取worker id租约
+-- KEYS[1]: 租约key id:worker:n
+-- ARGV[1]: 节点标识  ARGV[2]: 租约时长(秒)
+local owner = redis.call('get', KEYS[1])
+if owner == ARGV[1] then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+if not owner then
+    -- 租约已过期(如redis短暂不可用)，没有被其他节点获取，重新占用
+    redis.call('set', KEYS[1], ARGV[1], 'EX', ARGV[2])
+    return 1
+end
+-- 已被其他节点占用
+return 0
@@ -0,0 +1,174 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存值二进制编码的各类字段、空值、逻辑过期、结构变化和损坏数据
+ */
+class BinaryCacheCodecTests {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    enum Status {
+        OPEN, CLOSED
+    }
+
+    @Data
+    static class Sample {
+        private Long longValue;
+        private long primitiveLong;
+        private Integer intValue;
+        private int primitiveInt;
+        private Boolean booleanValue;
+        private boolean primitiveBoolean;
+        private Double doubleValue;
+        private float primitiveFloat;
+        private String stringValue;
+        private LocalDateTime time;
+        private LocalDate date;
+        private BigDecimal decimal;
+        private Status status;
+        private List<String> tags;
+    }
+
+    @Test
+    void testAllFieldKinds() {
+        Sample sample = sample();
+
+        RedisData redisData = codec.decode(codec.encode(sample, null), Sample.class, false);
+
+        assertNotNull(redisData);
+        assertNull(redisData.getExpireTime());
+        assertEquals(sample, redisData.getData());
+    }
+
+    @Test
+    void testNullFields() {
+        Sample sample = new Sample();
+        sample.setStringValue("");
+
+        RedisData redisData = codec.decode(codec.encode(sample, null), Sample.class, false);
+
+        assertNotNull(redisData);
+        assertEquals(sample, redisData.getData());
+        Sample decoded = (Sample) redisData.getData();
+        assertNull(decoded.getLongValue());
+        assertNull(decoded.getTime());
+        assertNull(decoded.getTags());
+        assertEquals("", decoded.getStringValue());
+    }
+
+    @Test
+    void testNullValue() {
+        LocalDateTime expireTime = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+
+        RedisData plain = codec.decode(codec.encode(null, null), Sample.class, false);
+        RedisData logic = codec.decode(codec.encode(null, expireTime), Sample.class, true);
+
+        assertNotNull(plain);
+        assertNull(plain.getData());
+        assertNotNull(logic);
+        assertNull(logic.getData());
+        assertEquals(expireTime, logic.getExpireTime());
+    }
+
+    @Test
+    void testLogicExpire() {
+        Sample sample = sample();
+        // 逻辑过期时间按毫秒保存
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20).truncatedTo(ChronoUnit.MILLIS);
+        byte[] logic = codec.encode(sample, expireTime);
+        byte[] plain = codec.encode(sample, null);
+
+        RedisData redisData = codec.decode(logic, Sample.class, true);
+        assertNotNull(redisData);
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertEquals(sample, redisData.getData());
+        // 写入和读取的方式不一致时按未命中处理
+        assertNull(codec.decode(logic, Sample.class, false));
+        assertNull(codec.decode(plain, Sample.class, true));
+    }
+
+    @Test
+    void testFingerprintMismatch() {
+        byte[] bytes = codec.encode(sample(), null);
+
+        assertNull(codec.decode(bytes, Shop.class, false));
+    }
+
+    @Test
+    void testReadOldJson() {
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setScore(37);
+        byte[] json = new JsonCacheCodec().encode(shop, null);
+
+        // 切换为二进制编码前写入的json由json解码器读取
+        assertFalse(codec.accepts(json));
+        assertTrue(codec.accepts(codec.encode(shop, null)));
+        assertFalse(new JsonCacheCodec().accepts(codec.encode(shop, null)));
+        Shop decoded = (Shop) new JsonCacheCodec().decode(json, Shop.class, false).getData();
+        assertEquals(shop.getName(), decoded.getName());
+        assertEquals(shop.getScore(), decoded.getScore());
+        assertFalse(codec.accepts("".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testTruncated() {
+        byte[] plain = codec.encode(sample(), null);
+        byte[] logic = codec.encode(sample(), LocalDateTime.now());
+
+        for (int length = 1; length < plain.length; length++) {
+            assertNull(codec.decode(Arrays.copyOf(plain, length), Sample.class, false), "length=" + length);
+        }
+        for (int length = 1; length < logic.length; length++) {
+            assertNull(codec.decode(Arrays.copyOf(logic, length), Sample.class, true), "length=" + length);
+        }
+    }
+
+    @Test
+    void testCorrupted() {
+        byte[] bytes = codec.encode(sample(), null);
+        Random random = new Random(42);
+        // 损坏的数据可能解码出错误的值，但不能抛出异常
+        for (int i = 0; i < 10000; i++) {
+            byte[] corrupted = bytes.clone();
+            int position = 6 + random.nextInt(corrupted.length - 6);
+            corrupted[position] = (byte) random.nextInt(256);
+            assertDoesNotThrow(() -> codec.decode(corrupted, Sample.class, false));
+        }
+    }
+
+    private static Sample sample() {
+        Sample sample = new Sample();
+        sample.setLongValue(-1234567890123L);
+        sample.setPrimitiveLong(Long.MAX_VALUE);
+        sample.setIntValue(Integer.MIN_VALUE);
+        sample.setPrimitiveInt(42);
+        sample.setBooleanValue(false);
+        sample.setPrimitiveBoolean(true);
+        sample.setDoubleValue(120.149192);
+        sample.setPrimitiveFloat(-0.5f);
+        sample.setStringValue("金华路锦昌文华苑29号");
+        sample.setTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123456789));
+        sample.setDate(LocalDate.of(2022, 1, 11));
+        sample.setDecimal(new BigDecimal("12345.6789"));
+        sample.setStatus(Status.CLOSED);
+        sample.setTags(Arrays.asList("茶餐厅", "港式"));
+        return sample;
+    }
+}
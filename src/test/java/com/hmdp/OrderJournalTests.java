@@ -0,0 +1,113 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 订单预写日志的重放和校验
+ */
+class OrderJournalTests {
+
+    /**
+     * 与OrderJournal的文件布局一致：64字节文件头，每条记录48字节，校验值在记录的第40字节
+     */
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 48;
+    private static final int CHECK_OFFSET = 40;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testReplayAfterCheckpoint() throws IOException {
+        Path file = dir.resolve("lane-0.journal");
+        try (OrderJournal journal = new OrderJournal(file, 16, 1000)) {
+            for (long seq = 0; seq < 5; seq++) {
+                journal.beforePublish(seq, 100 + seq, 200 + seq, 300, (int) seq % 2 + 1);
+            }
+            journal.checkpoint(1);
+        }
+
+        List<VoucherOrder> orders = OrderJournal.replay(file);
+        assertEquals(ids(102, 103, 104), orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        VoucherOrder first = orders.get(0);
+        assertEquals(202L, first.getUserId());
+        assertEquals(300L, first.getVoucherId());
+        assertEquals(1, first.getSlot());
+    }
+
+    @Test
+    void testReplayWithoutCheckpoint() throws IOException {
+        Path file = dir.resolve("lane-0.journal");
+        try (OrderJournal journal = new OrderJournal(file, 16, 1000)) {
+            journal.beforePublish(0, 100, 200, 300, 1);
+        }
+
+        assertEquals(ids(100), OrderJournal.replay(file).stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testReplayAfterWrapAround() throws IOException {
+        Path file = dir.resolve("lane-0.journal");
+        // 4个槽位，序号4、5覆盖了0、1
+        try (OrderJournal journal = new OrderJournal(file, 4, 1000)) {
+            for (long seq = 0; seq < 6; seq++) {
+                journal.beforePublish(seq, 100 + seq, 200, 300, 1);
+            }
+            journal.checkpoint(2);
+        }
+
+        assertEquals(ids(103, 104, 105),
+                OrderJournal.replay(file).stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testSkipCorruptRecord() throws IOException {
+        Path file = dir.resolve("lane-0.journal");
+        try (OrderJournal journal = new OrderJournal(file, 16, 1000)) {
+            for (long seq = 0; seq < 3; seq++) {
+                journal.beforePublish(seq, 100 + seq, 200, 300, 1);
+            }
+        }
+        // 模拟写了一半的记录：序号1的校验值与内容不一致
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putLong(0, 12345L), HEADER_SIZE + RECORD_SIZE + CHECK_OFFSET);
+        }
+
+        assertEquals(ids(100, 102), OrderJournal.replay(file).stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testSkipRecordInWrongSlot() throws IOException {
+        Path file = dir.resolve("lane-0.journal");
+        try (OrderJournal journal = new OrderJournal(file, 16, 1000)) {
+            journal.beforePublish(0, 100, 200, 300, 1);
+        }
+        // 序号0的记录被整体复制到槽位1，序号与槽位不对应
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            channel.read(record, HEADER_SIZE);
+            record.flip();
+            channel.write(record, HEADER_SIZE + RECORD_SIZE);
+        }
+
+        assertEquals(ids(100), OrderJournal.replay(file).stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+    }
+
+    private static List<Long> ids(long... ids) {
+        return Arrays.stream(ids).boxed().collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,277 @@
+package com.hmdp;
+
+import cn.hutool.core.util.RandomUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 秒杀lua脚本测试，直接连接本地redis-server(127.0.0.1:6379)，未启动时跳过
+ */
+class SeckillScriptTests {
+
+    private static final String STREAM_KEY = "stream.orders.test";
+    private static final String GROUP = "g1";
+    private static final long DAY = 20000L;
+
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate stringRedisTemplate;
+    private DefaultRedisScript<List> seckillScript;
+    private DefaultRedisScript<List> stripeScript;
+    private DefaultRedisScript<List> batchScript;
+    private long voucherId;
+
+    @BeforeEach
+    void setUp() {
+        factory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        factory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(factory);
+        boolean available;
+        try {
+            available = "PONG".equals(stringRedisTemplate.execute(connection -> connection.ping(), true));
+        } catch (Exception e) {
+            available = false;
+        }
+        assumeTrue(available, "本地redis-server未启动");
+
+        seckillScript = new DefaultRedisScript<>();
+        seckillScript.setResultType(List.class);
+        seckillScript.setLocation(new ClassPathResource("seckill.lua"));
+        stripeScript = new DefaultRedisScript<>();
+        stripeScript.setResultType(List.class);
+        stripeScript.setLocation(new ClassPathResource("seckill_stripe.lua"));
+        batchScript = new DefaultRedisScript<>();
+        batchScript.setResultType(List.class);
+        batchScript.setLocation(new ClassPathResource("seckill_batch.lua"));
+        voucherId = RandomUtil.randomLong(1_000_000_000L, 2_000_000_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (stringRedisTemplate != null) {
+            try {
+                stringRedisTemplate.delete(Arrays.asList(
+                        "seckill:stock:" + voucherId, "seckill:order:" + voucherId, STREAM_KEY,
+                        "seckill:window:" + voucherId,
+                        "seckill:stock:{" + voucherId + ":0}", "seckill:order:{" + voucherId + ":0}",
+                        "seckill:stock:{" + voucherId + ":1}", "seckill:order:{" + voucherId + ":1}",
+                        "seckill:quota:" + voucherId, "seckill:quota:" + voucherId + ":" + DAY,
+                        "seckill:room:" + voucherId, "seckill:ticket:" + voucherId,
+                        "seckill:stock:" + (voucherId + 1), "seckill:order:" + (voucherId + 1)));
+            } catch (Exception ignored) {
+            }
+        }
+        factory.destroy();
+    }
+
+    private Long seckill(long userId, long orderId, String streamKey) {
+        return seckill(userId, orderId, streamKey, "set");
+    }
+
+    private Long seckill(long userId, long orderId, String streamKey, String buyerMode) {
+        return (Long) seckill(userId, orderId, streamKey, buyerMode, 1, "").get(0);
+    }
+
+    /**
+     * @return {结果码, 用户的第几单}
+     */
+    private List<?> seckill(long userId, long orderId, String streamKey, String buyerMode, int userLimit, String day) {
+        return stringRedisTemplate.execute(seckillScript, Collections.emptyList(),
+                String.valueOf(voucherId), String.valueOf(userId), String.valueOf(orderId), streamKey,
+                buyerMode, "0", String.valueOf(System.currentTimeMillis()), String.valueOf(userLimit), day, "0");
+    }
+
+    @Test
+    void testSeckillToStream() {
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "1");
+        stringRedisTemplate.opsForStream().createGroup(STREAM_KEY, ReadOffset.from("0"), GROUP);
+
+        assertEquals(0L, seckill(1L, 1001L, STREAM_KEY));
+        // 同一用户重复下单
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "1");
+        assertEquals(2L, seckill(1L, 1002L, STREAM_KEY));
+        // 库存不足
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "0");
+        assertEquals(1L, seckill(2L, 1003L, STREAM_KEY));
+
+        // 只有成功的订单进入消息队列
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                Consumer.from(GROUP, "c1"),
+                StreamReadOptions.empty().count(10).block(Duration.ofMillis(100)),
+                StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()));
+        assertEquals(1, records.size());
+        Map<Object, Object> value = records.get(0).getValue();
+        assertEquals("1", value.get("userId"));
+        assertEquals(String.valueOf(voucherId), value.get("voucherId"));
+        assertEquals("1001", value.get("id"));
+        assertEquals("1", value.get("slot"));
+
+        // 未ACK的消息留在pending-list中，重启后可以从0重新读取
+        List<MapRecord<String, Object, Object>> pending = stringRedisTemplate.opsForStream().read(
+                Consumer.from(GROUP, "c1"),
+                StreamReadOptions.empty().count(10),
+                StreamOffset.create(STREAM_KEY, ReadOffset.from("0")));
+        assertEquals(1, pending.size());
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP, pending.get(0).getId());
+        pending = stringRedisTemplate.opsForStream().read(
+                Consumer.from(GROUP, "c1"),
+                StreamReadOptions.empty().count(10),
+                StreamOffset.create(STREAM_KEY, ReadOffset.from("0")));
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    void testSeckillToMemoryQueue() {
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "1");
+        assertEquals(0L, seckill(1L, 0L, ""));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_KEY)));
+    }
+
+    private Long stripe(int stripe, long userId, String mode) {
+        List<?> result = stringRedisTemplate.execute(stripeScript,
+                Arrays.asList("seckill:stock:{" + voucherId + ":" + stripe + "}",
+                        "seckill:order:{" + voucherId + ":" + stripe + "}",
+                        "seckill:window:{" + voucherId + ":" + stripe + "}"),
+                String.valueOf(userId), mode, "set", "0", "0", String.valueOf(System.currentTimeMillis()), "1", "");
+        return (Long) result.get(0);
+    }
+
+    @Test
+    void testStripedStock() {
+        stringRedisTemplate.opsForValue().set("seckill:stock:{" + voucherId + ":0}", "1");
+        stringRedisTemplate.opsForValue().set("seckill:stock:{" + voucherId + ":1}", "1");
+
+        assertEquals(0L, stripe(0, 1L, "claim"));
+        assertEquals(2L, stripe(0, 1L, "claim"));
+        // 桶0已空，用户2占位后从兄弟桶1扣减
+        assertEquals(5L, stripe(0, 2L, "claim"));
+        assertEquals(0L, stripe(1, 2L, "take"));
+        assertEquals(1L, stripe(1, 3L, "take"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:{" + voucherId + ":1}"));
+        assertEquals(2L, stringRedisTemplate.opsForSet().size("seckill:order:{" + voucherId + ":0}"));
+    }
+
+    @Test
+    void testBitmapBuyer() {
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "10");
+        long userId = 3L * 1048576 + 7;
+        assertEquals(0L, seckill(userId, 0L, "", "bitmap"));
+        assertEquals(2L, seckill(userId, 0L, "", "bitmap"));
+        assertTrue(stringRedisTemplate.opsForValue().getBit("seckill:buyer:" + voucherId + ":3", 7));
+        stringRedisTemplate.delete("seckill:buyer:" + voucherId + ":3");
+    }
+
+    /**
+     * bitmap模式下每个用户只占一位，按用户id高位分段，不写入set；内存对比见BuyerTrackingMemoryLoadTest
+     */
+    @Test
+    void testBitmapBuyerShards() {
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "100");
+        long firstUserId = 1048576L - 50;
+        for (long userId = firstUserId; userId < firstUserId + 100; userId++) {
+            assertEquals(0L, seckill(userId, 0L, "", "bitmap"));
+        }
+        // 100个用户跨越两个分段
+        String shard0 = "seckill:buyer:" + voucherId + ":0";
+        String shard1 = "seckill:buyer:" + voucherId + ":1";
+        assertEquals(50L, bitCount(shard0));
+        assertEquals(50L, bitCount(shard1));
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey("seckill:order:" + voucherId)));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+        stringRedisTemplate.delete(Arrays.asList(shard0, shard1));
+    }
+
+    private long bitCount(String key) {
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(key.getBytes()));
+        return count == null ? 0L : count;
+    }
+
+    @Test
+    void testSeckillQuota() {
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "10");
+        // 每人限购2单，返回用户的第几单
+        assertEquals(Arrays.asList(0L, 1L), seckill(1L, 0L, "", "set", 2, ""));
+        assertEquals(Arrays.asList(0L, 2L), seckill(1L, 0L, "", "set", 2, ""));
+        assertEquals(Arrays.asList(2L, 0L), seckill(1L, 0L, "", "set", 2, ""));
+        assertEquals("2", stringRedisTemplate.opsForHash().get("seckill:quota:" + voucherId, "1"));
+        // 按天限购，slot为 天数*1000+当天第几单
+        assertEquals(Arrays.asList(0L, DAY * 1000 + 1), seckill(1L, 0L, "", "set", 1, String.valueOf(DAY)));
+        assertEquals(Arrays.asList(2L, 0L), seckill(1L, 0L, "", "set", 1, String.valueOf(DAY)));
+        assertEquals("7", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+    }
+
+    @Test
+    void testWaitingRoom() {
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "10");
+        // 开始时放行2个号码，之后每秒放行1个
+        Map<String, String> room = new HashMap<>();
+        room.put("begin", String.valueOf(now));
+        room.put("rate", "1");
+        room.put("burst", "2");
+        stringRedisTemplate.opsForHash().putAll("seckill:room:" + voucherId, room);
+        assertEquals(6L, seckill(1L, 0L, ""));
+        stringRedisTemplate.opsForHash().put("seckill:ticket:" + voucherId, "1", "2");
+        stringRedisTemplate.opsForHash().put("seckill:ticket:" + voucherId, "2", "100");
+        assertEquals(0L, seckill(1L, 0L, ""));
+        assertEquals(7L, seckill(2L, 0L, ""));
+        assertEquals("9", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+    }
+
+    private List<?> batch(long userId, boolean allOrNothing, long... voucherIds) {
+        List<String> args = new ArrayList<>(Arrays.asList(String.valueOf(userId), "", "set",
+                String.valueOf(System.currentTimeMillis()), allOrNothing ? "1" : "0", String.valueOf(voucherIds.length)));
+        for (long id : voucherIds) {
+            args.addAll(Arrays.asList(String.valueOf(id), "0", "0", "1", "", "0"));
+        }
+        return stringRedisTemplate.execute(batchScript, Collections.emptyList(), args.toArray());
+    }
+
+    @Test
+    void testSeckillBatch() {
+        long other = voucherId + 1;
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "1");
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + other, "0");
+        // 整单模式：一张库存不足，另一张返回8且不扣减
+        assertEquals(Arrays.asList(8L, 0L, 1L, 0L), batch(1L, true, voucherId, other));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+        // 尽力模式：能抢到的先抢
+        assertEquals(Arrays.asList(0L, 1L, 1L, 0L), batch(1L, false, voucherId, other));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + other, "5");
+        assertEquals(Arrays.asList(2L, 0L, 0L, 1L), batch(1L, false, voucherId, other));
+    }
+
+    @Test
+    void testSeckillWindow() {
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.opsForValue().set("seckill:stock:" + voucherId, "10");
+        stringRedisTemplate.opsForHash().put("seckill:window:" + voucherId, "begin", String.valueOf(now + 60_000));
+        stringRedisTemplate.opsForHash().put("seckill:window:" + voucherId, "end", String.valueOf(now + 120_000));
+        assertEquals(3L, seckill(1L, 0L, ""));
+        stringRedisTemplate.opsForHash().put("seckill:window:" + voucherId, "begin", String.valueOf(now - 120_000));
+        stringRedisTemplate.opsForHash().put("seckill:window:" + voucherId, "end", String.valueOf(now - 60_000));
+        assertEquals(4L, seckill(1L, 0L, ""));
+        stringRedisTemplate.opsForHash().put("seckill:window:" + voucherId, "end", String.valueOf(now + 60_000));
+        assertEquals(0L, seckill(1L, 0L, ""));
+        assertEquals("9", stringRedisTemplate.opsForValue().get("seckill:stock:" + voucherId));
+    }
+}
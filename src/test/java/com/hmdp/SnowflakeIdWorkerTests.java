@@ -0,0 +1,85 @@
+package com.hmdp;
+
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 本地id生成器的布局、序列号进位和时钟回拨
+ */
+class SnowflakeIdWorkerTests {
+
+    private static final int SEQUENCE_BITS = 22;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    @Test
+    void testLayout() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(5, 100);
+        long id = worker.nextId(100);
+        // 高32位为秒数，随后是标志位、worker id、序列号
+        assertEquals(100L, id >>> 32);
+        assertEquals(1L, (id >>> 31) & 1);
+        assertEquals(5L, (id >>> SEQUENCE_BITS) & (SnowflakeIdWorker.MAX_WORKERS - 1));
+        // 起始秒数视为已用到0号，同一秒内从1号开始
+        assertEquals(1L, id & SEQUENCE_MASK);
+        assertEquals(2L, worker.nextId(100) & SEQUENCE_MASK);
+    }
+
+    @Test
+    void testSequenceResetsWhenClockAdvances() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(0, 100);
+        worker.nextId(100);
+        worker.nextId(100);
+        long id = worker.nextId(101);
+        assertEquals(101L, id >>> 32);
+        assertEquals(0L, id & SEQUENCE_MASK);
+    }
+
+    @Test
+    void testSequenceCarriesIntoNextSecond() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(0, 100);
+        long last = -1;
+        for (long i = 1; i <= SEQUENCE_MASK; i++) {
+            long id = worker.nextId(100);
+            assertTrue(id > last);
+            last = id;
+        }
+        assertEquals(100L, last >>> 32);
+        assertEquals(SEQUENCE_MASK, last & SEQUENCE_MASK);
+        // 序列号用完，进位到下一秒
+        long id = worker.nextId(100);
+        assertEquals(101L, id >>> 32);
+        assertEquals(0L, id & SEQUENCE_MASK);
+        assertEquals(101L, worker.lastTimestamp());
+        // 时钟追上后继续在进位后的秒数上递增
+        assertEquals(1L, worker.nextId(101) & SEQUENCE_MASK);
+    }
+
+    @Test
+    void testClockRollback() {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(0, 100);
+        long before = worker.nextId(105);
+        // 时钟回拨到103，继续沿用105秒，id仍然递增
+        long id = worker.nextId(103);
+        assertTrue(id > before);
+        assertEquals(105L, id >>> 32);
+        assertEquals(1L, id & SEQUENCE_MASK);
+        assertEquals(105L, worker.lastTimestamp());
+        // 时钟恢复后从新的一秒开始
+        assertEquals(106L, worker.nextId(106) >>> 32);
+    }
+
+    @Test
+    void testStartTimestamp() {
+        // 重新获取worker id时从上次用到的秒数之后开始，当前时间更早也不会生成更小的id
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(0, 200);
+        assertEquals(200L, worker.nextId(150) >>> 32);
+    }
+
+    @Test
+    void testWorkerIdOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdWorker(SnowflakeIdWorker.MAX_WORKERS, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdWorker(-1, 0));
+    }
+}
@@ -0,0 +1,92 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.util.RandomUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUYER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_BUYER_SHARD_BITS;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 对比连续用户id下，set与bitmap两种已下单用户记录的内存占用
+ * 直接连接本地redis-server(127.0.0.1:6379)，未启动时跳过
+ * 运行: mvn test -Pbenchmark -Dtest=BuyerTrackingMemoryLoadTest -Dbuyers=1000000
+ */
+class BuyerTrackingMemoryLoadTest {
+
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate stringRedisTemplate;
+    private long voucherId;
+
+    @BeforeEach
+    void setUp() {
+        factory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        factory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(factory);
+        boolean available;
+        try {
+            available = "PONG".equals(stringRedisTemplate.execute(connection -> connection.ping(), true));
+        } catch (Exception e) {
+            available = false;
+        }
+        assumeTrue(available, "本地redis-server未启动");
+        voucherId = RandomUtil.randomLong(1_000_000_000L, 2_000_000_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (stringRedisTemplate != null) {
+            try {
+                stringRedisTemplate.delete(SECKILL_ORDER_KEY + voucherId);
+            } catch (Exception ignored) {
+            }
+        }
+        factory.destroy();
+    }
+
+    @Test
+    void testBuyerTrackingMemory() {
+        int users = Integer.getInteger("buyers", 1_000_000);
+        long firstUserId = 1010L;
+        String setKey = SECKILL_ORDER_KEY + voucherId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] key = setKey.getBytes(StandardCharsets.UTF_8);
+            for (long userId = firstUserId; userId < firstUserId + users; userId++) {
+                connection.sAdd(key, String.valueOf(userId).getBytes(StandardCharsets.UTF_8));
+                connection.setBit(bitmapKey(userId >> SECKILL_BUYER_SHARD_BITS).getBytes(StandardCharsets.UTF_8),
+                        userId & ((1L << SECKILL_BUYER_SHARD_BITS) - 1), true);
+            }
+            return null;
+        });
+        long setBytes = memoryUsage(setKey);
+        long bitmapBytes = 0;
+        for (long shard = firstUserId >> SECKILL_BUYER_SHARD_BITS;
+             shard <= (firstUserId + users - 1) >> SECKILL_BUYER_SHARD_BITS; shard++) {
+            String key = bitmapKey(shard);
+            bitmapBytes += memoryUsage(key);
+            stringRedisTemplate.delete(key);
+        }
+        System.out.printf("buyers=%d set=%d bytes (%.1f B/user) bitmap=%d bytes (%.2f B/user)%n",
+                users, setBytes, setBytes / (double) users, bitmapBytes, bitmapBytes / (double) users);
+        assertTrue(bitmapBytes * 10 < setBytes);
+    }
+
+    private String bitmapKey(long shard) {
+        return SECKILL_BUYER_KEY + voucherId + ":" + shard;
+    }
+
+    private long memoryUsage(String key) {
+        Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.execute("MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8)));
+        return usage == null ? 0L : (Long) usage;
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存值编码的开销：json 对比 二进制，数据为带逻辑过期时间的Shop(ShopServiceImpl.queryById的缓存方式)
+ * 编码后的字节数在main方法中输出
+ * 运行: 执行main方法，或 java -cp target/test-classes:依赖 org.openjdk.jmh.Main CacheCodecBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "binary"})
+    String codecName;
+
+    private CacheCodec codec;
+    private Shop shop;
+    private LocalDateTime expireTime;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        codec = codecOf(codecName);
+        shop = sampleShop();
+        expireTime = LocalDateTime.now().plusSeconds(20);
+        bytes = codec.encode(shop, expireTime);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(shop, expireTime);
+    }
+
+    @Benchmark
+    public RedisData decode() {
+        return codec.decode(bytes, Shop.class, true);
+    }
+
+    private static CacheCodec codecOf(String name) {
+        return "binary".equals(name) ? new BinaryCacheCodec() : new JsonCacheCodec();
+    }
+
+    private static Shop sampleShop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 11, 16, 5, 47));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (String name : new String[]{"json", "binary"}) {
+            System.out.printf("%s: %d bytes%n", name,
+                    codecOf(name).encode(sampleShop(), LocalDateTime.now().plusSeconds(20)).length);
+        }
+        new Runner(new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
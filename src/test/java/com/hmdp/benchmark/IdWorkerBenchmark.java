@@ -0,0 +1,56 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * snowflake模式下本地生成id的吞吐量，单线程对比多线程竞争同一个生成器
+ * 时间戳与RedisIdWorker一样每次调用时读取，序列号用完时进位到下一秒，不会阻塞
+ * 运行: 执行main方法，或 java -cp target/test-classes:依赖 org.openjdk.jmh.Main IdWorkerBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdWorkerBenchmark {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    @State(Scope.Benchmark)
+    public static class WorkerState {
+        SnowflakeIdWorker worker;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            worker = new SnowflakeIdWorker(1, System.currentTimeMillis() / 1000 - BEGIN_TIMESTAMP);
+        }
+    }
+
+    private static long nextId(WorkerState state) {
+        return state.worker.nextId(System.currentTimeMillis() / 1000 - BEGIN_TIMESTAMP);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long snowflakeSingleThread(WorkerState state) {
+        return nextId(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long snowflakeFourThreads(WorkerState state) {
+        return nextId(state);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IdWorkerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
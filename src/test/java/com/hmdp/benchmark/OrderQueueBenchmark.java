@@ -0,0 +1,123 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderRingBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 请求线程向订单队列投递订单的吞吐量：ArrayBlockingQueue 对比 OrderRingBuffer
+ * 多个生产者线程并发投递，后台一个消费线程持续读取，模拟秒杀时Tomcat线程与订单消费线程
+ * 运行: 执行main方法，或 java -cp target/test-classes:依赖 org.openjdk.jmh.Main OrderQueueBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class OrderQueueBenchmark {
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int BATCH = 200;
+
+    private static final AtomicLong ID = new AtomicLong();
+
+    @State(Scope.Benchmark)
+    public static class BlockingQueueState {
+        ArrayBlockingQueue<VoucherOrder> queue;
+        Thread consumer;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            queue = new ArrayBlockingQueue<>(CAPACITY);
+            consumer = new Thread(() -> {
+                List<VoucherOrder> batch = new ArrayList<>(BATCH);
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, BATCH - 1);
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            consumer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            consumer.interrupt();
+            consumer.join();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RingBufferState {
+        @Param({"SLEEPING", "BLOCKING"})
+        OrderRingBuffer.WaitStrategy waitStrategy;
+        OrderRingBuffer ring;
+        Thread consumer;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            ring = new OrderRingBuffer(CAPACITY, waitStrategy);
+            consumer = new Thread(() -> {
+                VoucherOrder[] orders = new VoucherOrder[BATCH];
+                for (int i = 0; i < BATCH; i++) {
+                    orders[i] = new VoucherOrder();
+                }
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        ring.await(-1);
+                        ring.drainTo(orders, 0, BATCH);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            consumer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            consumer.interrupt();
+            consumer.join();
+        }
+    }
+
+    /**
+     * 原实现：每次投递创建订单对象，队列满时add抛异常，这里用offer只比较投递开销
+     */
+    @Benchmark
+    public boolean arrayBlockingQueue(BlockingQueueState state) {
+        long id = ID.incrementAndGet();
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(id);
+        voucherOrder.setVoucherId(1L);
+        voucherOrder.setSlot(1);
+        return state.queue.offer(voucherOrder);
+    }
+
+    @Benchmark
+    public boolean ringBuffer(RingBufferState state) {
+        long id = ID.incrementAndGet();
+        return state.ring.tryPublish(id, id, 1L, 1) >= 0;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(OrderQueueBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,259 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 秒杀端到端压测：启动应用，连接本地redis-server(127.0.0.1:6379)和H2内存数据库
+ * 新建一张秒杀券，模拟多个用户并发调用秒杀接口，输出延迟分布、成功/失败数、订单消费延迟，
+ * 并检查没有超卖、每个用户只有一单。
+ * 运行: mvn test -Pbenchmark -Dseckill.users=2000 -Dseckill.stock=500 -Dseckill.threads=200 -Dseckill.requests-per-user=2
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("benchmark")
+class SeckillLoadTest {
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${seckill.users:2000}")
+    private int users;
+
+    @Value("${seckill.stock:500}")
+    private int stock;
+
+    @Value("${seckill.threads:200}")
+    private int threads;
+
+    @Value("${seckill.requests-per-user:2}")
+    private int requestsPerUser;
+
+    /**
+     * 等待订单全部落库的最长时间
+     */
+    @Value("${seckill.drain-timeout-seconds:60}")
+    private long drainTimeoutSeconds;
+
+    private Long voucherId;
+    private final List<String> tokens = new ArrayList<>();
+
+    @BeforeAll
+    static void checkRedis() {
+        LettuceConnectionFactory factory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        factory.afterPropertiesSet();
+        boolean available;
+        try {
+            available = "PONG".equals(new StringRedisTemplate(factory).execute(connection -> connection.ping(), true));
+        } catch (Exception e) {
+            available = false;
+        } finally {
+            factory.destroy();
+        }
+        assumeTrue(available, "本地redis-server未启动");
+    }
+
+    @AfterEach
+    void tearDown() {
+        List<String> keys = new ArrayList<>();
+        for (String token : tokens) {
+            keys.add(LOGIN_USER_KEY + token);
+        }
+        if (voucherId != null) {
+            keys.addAll(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                    SECKILL_WINDOW_KEY + voucherId, SECKILL_SOLD_OUT_KEY + voucherId, SECKILL_STRIPES_KEY + voucherId));
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    @Test
+    void seckill() throws Exception {
+        // 1.新建秒杀券，id从随机位置开始，避免与本地redis中的其他数据冲突
+        long base = ThreadLocalRandom.current().nextLong(1_000_000_000L, 2_000_000_000L);
+        jdbcTemplate.execute("ALTER TABLE tb_voucher ALTER COLUMN id RESTART WITH " + base);
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        voucherId = voucher.getId();
+
+        // 2.模拟登录，token直接写入redis
+        Map<String, Long> userIds = new HashMap<>(users * 2);
+        for (int i = 0; i < users; i++) {
+            String token = UUID.randomUUID().toString(true);
+            tokens.add(token);
+            userIds.put(token, base + i);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            userIds.forEach((token, userId) -> {
+                Map<String, String> user = new HashMap<>(4);
+                user.put("id", userId.toString());
+                user.put("nickName", "user_" + userId);
+                conn.hMSet(LOGIN_USER_KEY + token, user);
+                conn.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL);
+            });
+            return null;
+        });
+
+        // 3.所有用户同时开抢，每个用户请求requestsPerUser次
+        RestTemplate restTemplate = new RestTemplate();
+        String url = "http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId;
+        int total = users * requestsPerUser;
+        long[] latencies = new long[total];
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong accepted = new AtomicLong();
+        Map<String, AtomicLong> rejected = new ConcurrentHashMap<>();
+        Set<Long> acceptedUsers = ConcurrentHashMap.newKeySet();
+        AtomicLong duplicateAccepted = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                int i;
+                while ((i = next.getAndIncrement()) < total) {
+                    String token = tokens.get(i % users);
+                    HttpHeaders headers = new HttpHeaders();
+                    headers.set("authorization", token);
+                    long begin = System.nanoTime();
+                    Result result = restTemplate.exchange(url, HttpMethod.POST, new HttpEntity<>(headers), Result.class).getBody();
+                    latencies[i] = System.nanoTime() - begin;
+                    if (result != null && Boolean.TRUE.equals(result.getSuccess())) {
+                        accepted.incrementAndGet();
+                        if (!acceptedUsers.add(userIds.get(token))) {
+                            duplicateAccepted.incrementAndGet();
+                        }
+                    } else {
+                        String reason = result == null ? "null" : result.getErrorMsg();
+                        rejected.computeIfAbsent(reason, k -> new AtomicLong()).incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        // 请求期间采样订单队列深度
+        AtomicLong maxQueueDepth = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> maxQueueDepth.accumulateAndGet(queueDepth(), Math::max),
+                0, 10, TimeUnit.MILLISECONDS);
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+
+        // 4.等待订单全部落库，期间仍然采样队列深度
+        long drainBegin = System.nanoTime();
+        long deadline = drainBegin + TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+        long persisted;
+        while ((persisted = countOrders()) < accepted.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainBegin);
+        sampler.shutdownNow();
+
+        // 5.输出报告
+        Arrays.sort(latencies);
+        System.out.println("========== 秒杀压测报告 ==========");
+        System.out.printf("用户 %d, 库存 %d, 并发线程 %d, 请求 %d, 耗时 %d ms, 吞吐 %.0f req/s%n",
+                users, stock, threads, total, TimeUnit.NANOSECONDS.toMillis(elapsed), total * 1e9 / elapsed);
+        System.out.printf("延迟 p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, latencies[total - 1] / 1e6);
+        System.out.printf("成功 %d, 失败 %s%n", accepted.get(), rejected);
+        System.out.printf("订单队列最大深度 %d, 请求结束后订单全部落库用时 %d ms, 已落库 %d%n",
+                maxQueueDepth.get(), drainMillis, persisted);
+
+        // 6.正确性：不超卖，一人一单，redis与数据库库存一致
+        Integer dbStock = jdbcTemplate.queryForObject(
+                "SELECT stock FROM tb_seckill_voucher WHERE voucher_id = ?", Integer.class, voucherId);
+        Long duplicateUsers = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM (SELECT user_id FROM tb_voucher_order WHERE voucher_id = ? "
+                        + "GROUP BY user_id HAVING COUNT(*) > 1) t", Long.class, voucherId);
+        String redisStock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        System.out.printf("数据库剩余库存 %d, redis剩余库存 %s, 重复下单用户 %d%n", dbStock, redisStock, duplicateUsers);
+        assertEquals(0L, duplicateAccepted.get(), "同一用户多次秒杀成功");
+        assertTrue(accepted.get() <= stock, "超卖");
+        assertEquals(accepted.get(), persisted, "订单没有全部落库");
+        assertEquals(stock - accepted.get(), (long) dbStock);
+        assertEquals(String.valueOf(stock - accepted.get()), redisStock);
+        assertEquals(0L, duplicateUsers);
+    }
+
+    private long countOrders() {
+        Long count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM tb_voucher_order WHERE voucher_id = ?", Long.class, voucherId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 订单队列中等待落库的订单数: memory模式为各通道环形缓冲区的深度之和，stream模式为pending消息数
+     */
+    @SuppressWarnings("unchecked")
+    private long queueDepth() {
+        Map<String, Object> stats = voucherOrderService.queryOrderQueueStats();
+        if (stats.containsKey("pending")) {
+            return ((Number) stats.get("pending")).longValue();
+        }
+        long depth = 0;
+        for (Map<String, Object> lane : (List<Map<String, Object>>) stats.get("lanes")) {
+            depth += ((Number) lane.get("queueDepth")).longValue();
+        }
+        return depth;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * p) - 1)];
+    }
+}